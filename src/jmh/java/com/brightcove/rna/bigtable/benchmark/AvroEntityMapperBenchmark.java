@@ -0,0 +1,92 @@
+package com.brightcove.rna.bigtable.benchmark;
+
+import com.brightcove.rna.bigtable.avro.AvroEntityComposer;
+import com.brightcove.rna.bigtable.avro.AvroEntityMapper;
+import com.brightcove.rna.bigtable.avro.AvroEntityMapperProvider;
+import com.brightcove.rna.bigtable.avro.AvroEntitySchema;
+import com.brightcove.rna.bigtable.avro.AvroEntitySerDe;
+import com.brightcove.rna.bigtable.avro.AvroKeyEntitySchemaParser;
+import com.brightcove.rna.bigtable.avro.AvroKeySchema;
+import com.brightcove.rna.bigtable.avro.AvroKeySerDe;
+import org.apache.avro.generic.IndexedRecord;
+import org.apache.avro.specific.SpecificRecordBase;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Maps whole entities to Puts and Results back to entities, for a narrow and a wide schema, for both Generic
+ * and Specific records, and with column lookups or single pass decoding of the Results.
+ */
+@State(Scope.Benchmark)
+public class AvroEntityMapperBenchmark {
+
+    @Param({"narrow", "wide"})
+    private String schema;
+
+    @Param({"generic", "specific"})
+    private String recordType;
+
+    @Param({"lookup", "singlePass"})
+    private String decoding;
+
+    private AvroEntityMapper<IndexedRecord> mapper;
+    private IndexedRecord entity;
+    private Result result;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        String schemaString = schema.equals("narrow") ? BenchmarkSchemas.NARROW : BenchmarkSchemas.WIDE;
+        if (recordType.equals("specific")) {
+            Class<? extends SpecificRecordBase> recordClass = schema.equals("narrow") ? NarrowEntity.class : WideEntity.class;
+            mapper = (AvroEntityMapper<IndexedRecord>) (AvroEntityMapper<?>) AvroEntityMapperProvider.forClass(recordClass);
+            entity = BenchmarkSchemas.fill(newInstance(recordClass), 42);
+        } else {
+            AvroKeyEntitySchemaParser parser = new AvroKeyEntitySchemaParser();
+            AvroKeySchema keySchema = parser.parseKeySchema(schemaString);
+            AvroEntitySchema entitySchema = parser.parseEntitySchema(schemaString);
+            mapper = new AvroEntityMapper<>(keySchema, entitySchema,
+                new AvroKeySerDe(keySchema.getAvroSchema(), entitySchema.getAvroSchema()),
+                new AvroEntitySerDe<>(new AvroEntityComposer<>(entitySchema, false), entitySchema, false));
+            entity = BenchmarkSchemas.newGenericEntity(entitySchema.getAvroSchema(), 42);
+        }
+
+        if (decoding.equals("singlePass")) {
+            mapper = mapper.withSinglePassDecoding();
+        }
+
+        Put put = mapper.mapFromEntity(entity);
+        List<Cell> cells = new ArrayList<>();
+        put.getFamilyCellMap().values().forEach(cells::addAll);
+        cells.sort(KeyValue.COMPARATOR);
+        result = Result.create(cells);
+    }
+
+    @Benchmark
+    public Put mapFromEntity() {
+        return mapper.mapFromEntity(entity);
+    }
+
+    @Benchmark
+    public IndexedRecord mapToEntity() {
+        return mapper.mapToEntity(result);
+    }
+
+    private static IndexedRecord newInstance(Class<? extends IndexedRecord> recordClass) {
+        try {
+            return recordClass.newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
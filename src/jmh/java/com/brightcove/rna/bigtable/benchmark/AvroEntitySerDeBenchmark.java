@@ -0,0 +1,125 @@
+package com.brightcove.rna.bigtable.benchmark;
+
+import com.brightcove.rna.bigtable.avro.AvroEntityComposer;
+import com.brightcove.rna.bigtable.avro.AvroEntitySchema;
+import com.brightcove.rna.bigtable.avro.AvroEntitySerDe;
+import com.brightcove.rna.bigtable.avro.AvroKeyEntitySchemaParser;
+import com.brightcove.rna.bigtable.core.FieldMapping;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Serializes and deserializes single fields with AvroEntitySerDe: the column path for each kind of column
+ * encoding, and the keyAsColumn path for a map and a record field.
+ */
+public class AvroEntitySerDeBenchmark {
+    private static final String SCHEMA = "{\n" +
+        "    \"name\": \"SerDeEntity\",\n" +
+        "    \"type\": \"record\",\n" +
+        "    \"fields\": [\n" +
+        "        { \"name\": \"id\", \"type\": \"long\", \"mapping\": { \"type\": \"key\", \"value\": \"0\" } },\n" +
+        "        { \"name\": \"intColumn\", \"type\": \"int\", \"mapping\": { \"type\": \"column\", \"value\": \"c:int\" } },\n" +
+        "        { \"name\": \"longColumn\", \"type\": \"long\", \"mapping\": { \"type\": \"counter\", \"value\": \"c:long\" } },\n" +
+        "        { \"name\": \"stringColumn\", \"type\": \"string\", \"mapping\": { \"type\": \"column\", \"value\": \"c:string\" } },\n" +
+        "        { \"name\": \"nullableColumn\", \"type\": [\"null\", \"string\"], \"mapping\": { \"type\": \"column\", \"value\": \"c:nullable\" } },\n" +
+        "        { \"name\": \"doubleColumn\", \"type\": \"double\", \"mapping\": { \"type\": \"column\", \"value\": \"c:double\" } },\n" +
+        "        { \"name\": \"mapField\", \"type\": { \"type\": \"map\", \"values\": \"string\" }, \"mapping\": { \"type\": \"keyAsColumn\", \"value\": \"map\" } },\n" +
+        "        { \"name\": \"recordField\", \"type\": {\n" +
+        "            \"type\": \"record\",\n" +
+        "            \"name\": \"SerDeSubRecord\",\n" +
+        "            \"fields\": [\n" +
+        "                { \"name\": \"a\", \"type\": \"int\" },\n" +
+        "                { \"name\": \"b\", \"type\": \"long\" },\n" +
+        "                { \"name\": \"c\", \"type\": \"string\" }\n" +
+        "            ]},\n" +
+        "            \"mapping\": { \"type\": \"keyAsColumn\", \"value\": \"record:\" }\n" +
+        "        }\n" +
+        "    ]\n" +
+        "}";
+
+    /**
+     * The serde and entity shared by both states. JMH does not order the setup methods of a state class and its
+     * superclass, so the subclasses call this from their own setup.
+     */
+    abstract static class SerDeState {
+        AvroEntitySchema entitySchema;
+        AvroEntitySerDe<GenericRecord> entitySerDe;
+        GenericRecord entity;
+
+        void setUpSerDe() {
+            entitySchema = new AvroKeyEntitySchemaParser().parseEntitySchema(SCHEMA);
+            entitySerDe = new AvroEntitySerDe<>(new AvroEntityComposer<>(entitySchema, false), entitySchema, false);
+
+            entity = BenchmarkSchemas.newGenericEntity(entitySchema.getAvroSchema(), 7);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class ColumnState extends SerDeState {
+        @Param({"intColumn", "longColumn", "stringColumn", "nullableColumn", "doubleColumn"})
+        String field;
+
+        Object value;
+        byte[] bytes;
+
+        @Setup
+        public void setUp() {
+            setUpSerDe();
+            value = entity.get(field);
+            bytes = entitySerDe.serializeColumnValueToBytes(field, value);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class KeyAsColumnState extends SerDeState {
+        @Param({"mapField", "recordField"})
+        String field;
+
+        FieldMapping mapping;
+        Object value;
+        Result result;
+
+        @Setup
+        public void setUp() {
+            setUpSerDe();
+            mapping = entitySchema.getFieldMapping(field);
+            value = entity.get(field);
+            Put put = entitySerDe.serialize(new byte[]{1}, mapping, value);
+            List<Cell> cells = new ArrayList<>();
+            put.getFamilyCellMap().values().forEach(cells::addAll);
+            cells.sort(KeyValue.COMPARATOR);
+            result = Result.create(cells);
+        }
+    }
+
+    @Benchmark
+    public byte[] serializeColumn(ColumnState state) {
+        return state.entitySerDe.serializeColumnValueToBytes(state.field, state.value);
+    }
+
+    @Benchmark
+    public Object deserializeColumn(ColumnState state) {
+        return state.entitySerDe.deserializeColumnValueFromBytes(state.field, state.bytes);
+    }
+
+    @Benchmark
+    public Put serializeKeyAsColumn(KeyAsColumnState state) {
+        return state.entitySerDe.serialize(new byte[]{1}, state.mapping, state.value);
+    }
+
+    @Benchmark
+    public Object deserializeKeyAsColumn(KeyAsColumnState state) {
+        return state.entitySerDe.deserialize(state.mapping, state.result);
+    }
+}
@@ -0,0 +1,47 @@
+package com.brightcove.rna.bigtable.benchmark;
+
+import com.brightcove.rna.bigtable.avro.AvroEntitySchema;
+import com.brightcove.rna.bigtable.avro.AvroKeyEntitySchemaParser;
+import com.brightcove.rna.bigtable.avro.AvroKeySchema;
+import com.brightcove.rna.bigtable.avro.AvroKeySerDe;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.generic.IndexedRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Serializes and deserializes the (string, long) row key of the narrow schema.
+ */
+@State(Scope.Benchmark)
+public class AvroKeySerDeBenchmark {
+    private AvroKeySerDe keySerDe;
+    private GenericRecord entity;
+    private byte[] keyBytes;
+
+    @Setup
+    public void setUp() {
+        AvroKeyEntitySchemaParser parser = new AvroKeyEntitySchemaParser();
+        AvroKeySchema keySchema = parser.parseKeySchema(BenchmarkSchemas.NARROW);
+        AvroEntitySchema entitySchema = parser.parseEntitySchema(BenchmarkSchemas.NARROW);
+        keySerDe = new AvroKeySerDe(keySchema.getAvroSchema(), entitySchema.getAvroSchema());
+        entity = BenchmarkSchemas.newGenericEntity(entitySchema.getAvroSchema(), 42);
+        keyBytes = keySerDe.serialize(entity);
+    }
+
+    @Benchmark
+    public byte[] serialize() {
+        return keySerDe.serialize(entity);
+    }
+
+    @Benchmark
+    public IndexedRecord deserialize() {
+        return keySerDe.deserialize(keyBytes);
+    }
+
+    @Benchmark
+    public IndexedRecord roundTrip() {
+        return keySerDe.deserialize(keySerDe.serialize(entity));
+    }
+}
@@ -0,0 +1,108 @@
+package com.brightcove.rna.bigtable.benchmark;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.IndexedRecord;
+import org.apache.avro.util.Utf8;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Mapped entity schemas and entity factories shared by the benchmarks.
+ */
+final class BenchmarkSchemas {
+
+    /**
+     * A typical small entity: a two part key, a few columns and a keyAsColumn map.
+     */
+    static final String NARROW = "{\n" +
+        "    \"name\": \"NarrowEntity\",\n" +
+        "    \"namespace\": \"com.brightcove.rna.bigtable.benchmark\",\n" +
+        "    \"type\": \"record\",\n" +
+        "    \"fields\": [\n" +
+        "        { \"name\": \"account\", \"type\": \"string\", \"mapping\": { \"type\": \"key\", \"value\": \"0\" } },\n" +
+        "        { \"name\": \"id\", \"type\": \"long\", \"mapping\": { \"type\": \"key\", \"value\": \"1\" } },\n" +
+        "        { \"name\": \"name\", \"type\": \"string\", \"mapping\": { \"type\": \"column\", \"value\": \"meta:name\" } },\n" +
+        "        { \"name\": \"duration\", \"type\": \"int\", \"mapping\": { \"type\": \"column\", \"value\": \"meta:duration\" } },\n" +
+        "        { \"name\": \"description\", \"type\": [\"null\", \"string\"], \"mapping\": { \"type\": \"column\", \"value\": \"meta:description\" } },\n" +
+        "        { \"name\": \"plays\", \"type\": \"long\", \"mapping\": { \"type\": \"counter\", \"value\": \"stats:plays\" } },\n" +
+        "        { \"name\": \"tags\", \"type\": { \"type\": \"map\", \"values\": \"string\" }, \"mapping\": { \"type\": \"keyAsColumn\", \"value\": \"tags\" } }\n" +
+        "    ]\n" +
+        "}";
+
+    /**
+     * A wide entity with many columns of every supported column type and a large keyAsColumn map.
+     */
+    static final String WIDE = wideSchema(32);
+
+    private BenchmarkSchemas() {
+    }
+
+    private static String wideSchema(int columns) {
+        String[] types = {"\"int\"", "\"long\"", "\"string\"", "\"double\"", "[\"null\", \"string\"]", "\"boolean\"", "\"bytes\""};
+        StringBuilder schema = new StringBuilder("{\n" +
+            "    \"name\": \"WideEntity\",\n" +
+            "    \"namespace\": \"com.brightcove.rna.bigtable.benchmark\",\n" +
+            "    \"type\": \"record\",\n" +
+            "    \"fields\": [\n" +
+            "        { \"name\": \"account\", \"type\": \"string\", \"mapping\": { \"type\": \"key\", \"value\": \"0\" } },\n" +
+            "        { \"name\": \"id\", \"type\": \"long\", \"mapping\": { \"type\": \"key\", \"value\": \"1\" } },\n");
+        for (int i = 0; i < columns; i++) {
+            schema.append(String.format(
+                "        { \"name\": \"column%d\", \"type\": %s, \"mapping\": { \"type\": \"column\", \"value\": \"c%d:q%d\" } },\n",
+                i, types[i % types.length], i % 3, i));
+        }
+        schema.append("        { \"name\": \"tags\", \"type\": { \"type\": \"map\", \"values\": \"long\" }, \"mapping\": { \"type\": \"keyAsColumn\", \"value\": \"tags\" } }\n" +
+            "    ]\n" +
+            "}");
+        return schema.toString();
+    }
+
+    /**
+     * Creates a generic record with made up values for every field of the schema.
+     */
+    static GenericData.Record newGenericEntity(Schema schema, int seed) {
+        return fill(new GenericData.Record(schema), seed);
+    }
+
+    /**
+     * Fills every field of a record with made up values derived from the seed.
+     */
+    static <R extends IndexedRecord> R fill(R record, int seed) {
+        for (Schema.Field field : record.getSchema().getFields()) {
+            record.put(field.pos(), valueFor(field.schema(), seed + field.pos()));
+        }
+        return record;
+    }
+
+    private static Object valueFor(Schema schema, int seed) {
+        switch (schema.getType()) {
+            case INT:
+                return seed;
+            case LONG:
+                return seed * 1000003L;
+            case DOUBLE:
+                return seed / 7.0;
+            case BOOLEAN:
+                return seed % 2 == 0;
+            case STRING:
+                return new Utf8("value-" + seed + "-with-some-padding");
+            case BYTES:
+                return ByteBuffer.wrap(new byte[]{(byte) seed, 0, (byte) (seed >> 8), 1});
+            case UNION:
+                return valueFor(schema.getTypes().get(1), seed);
+            case MAP:
+                Map<Utf8, Object> map = new HashMap<>();
+                for (int i = 0; i < 16; i++) {
+                    map.put(new Utf8("key" + i), valueFor(schema.getValueType(), seed + i));
+                }
+                return map;
+            case RECORD:
+                return fill(new GenericData.Record(schema), seed);
+            default:
+                throw new IllegalArgumentException("Unsupported benchmark field type: " + schema);
+        }
+    }
+}
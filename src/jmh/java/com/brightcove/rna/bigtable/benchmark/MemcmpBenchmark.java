@@ -0,0 +1,105 @@
+package com.brightcove.rna.bigtable.benchmark;
+
+import com.brightcove.rna.bigtable.avro.io.MemcmpDecoder;
+import com.brightcove.rna.bigtable.avro.io.MemcmpEncoder;
+import org.apache.avro.util.Utf8;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes and decodes single values of each type with the memcmp encoding, using a buffer-backed encoder and an
+ * array-backed decoder the way AvroKeySerDe does.
+ */
+@State(Scope.Thread)
+public class MemcmpBenchmark {
+    private final MemcmpEncoder encoder = new MemcmpEncoder();
+    private final MemcmpDecoder decoder = new MemcmpDecoder(new byte[0]);
+
+    private final Utf8 string = new Utf8("account-0000123/video-with-a-longer-name");
+    private final ByteBuffer bytes = ByteBuffer.wrap(new byte[]{1, 0, 2, 0, 0, 3, 4, 5, 6, 0, 7, 8, 9, 10, 0, 11});
+
+    private byte[] encodedInt;
+    private byte[] encodedLong;
+    private byte[] encodedDouble;
+    private byte[] encodedString;
+    private byte[] encodedBytes;
+
+    private Utf8 reusedString = new Utf8();
+    private ByteBuffer reusedBytes = ByteBuffer.allocate(32);
+
+    @Setup
+    public void setUp() throws IOException {
+        encodedInt = encodeInt();
+        encodedLong = encodeLong();
+        encodedDouble = encodeDouble();
+        encodedString = encodeString();
+        encodedBytes = encodeBytes();
+    }
+
+    @Benchmark
+    public byte[] encodeInt() throws IOException {
+        encoder.reset();
+        encoder.writeInt(-123456);
+        return encoder.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] encodeLong() throws IOException {
+        encoder.reset();
+        encoder.writeLong(1234567890123L);
+        return encoder.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] encodeDouble() throws IOException {
+        encoder.reset();
+        encoder.writeDouble(-1234.5678);
+        return encoder.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] encodeString() throws IOException {
+        encoder.reset();
+        encoder.writeString(string);
+        return encoder.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] encodeBytes() throws IOException {
+        encoder.reset();
+        encoder.writeBytes(bytes.duplicate());
+        return encoder.toByteArray();
+    }
+
+    @Benchmark
+    public int decodeInt() throws IOException {
+        return decoder.configure(encodedInt, 0, encodedInt.length).readInt();
+    }
+
+    @Benchmark
+    public long decodeLong() throws IOException {
+        return decoder.configure(encodedLong, 0, encodedLong.length).readLong();
+    }
+
+    @Benchmark
+    public double decodeDouble() throws IOException {
+        return decoder.configure(encodedDouble, 0, encodedDouble.length).readDouble();
+    }
+
+    @Benchmark
+    public Utf8 decodeString() throws IOException {
+        reusedString = decoder.configure(encodedString, 0, encodedString.length).readString(reusedString);
+        return reusedString;
+    }
+
+    @Benchmark
+    public ByteBuffer decodeBytes() throws IOException {
+        reusedBytes = decoder.configure(encodedBytes, 0, encodedBytes.length).readBytes(reusedBytes);
+        return reusedBytes;
+    }
+}
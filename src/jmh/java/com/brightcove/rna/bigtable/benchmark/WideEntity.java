@@ -0,0 +1,29 @@
+package com.brightcove.rna.bigtable.benchmark;
+
+import org.apache.avro.Schema;
+import org.apache.avro.specific.SpecificRecordBase;
+
+/**
+ * A specific record for the {@link BenchmarkSchemas#WIDE} schema, standing in for a class generated by the Avro
+ * compiler. Field values are kept in an array since the benchmarks only access them by position.
+ */
+public class WideEntity extends SpecificRecordBase {
+    public static final Schema SCHEMA$ = new Schema.Parser().parse(BenchmarkSchemas.WIDE);
+
+    private final Object[] values = new Object[SCHEMA$.getFields().size()];
+
+    @Override
+    public Schema getSchema() {
+        return SCHEMA$;
+    }
+
+    @Override
+    public Object get(int field) {
+        return values[field];
+    }
+
+    @Override
+    public void put(int field, Object value) {
+        values[field] = value;
+    }
+}
@@ -0,0 +1,51 @@
+package com.brightcove.rna.bigtable;
+
+import org.apache.hadoop.hbase.client.BufferedMutator;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Mutation;
+import org.apache.hadoop.hbase.client.Put;
+
+import java.io.IOException;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A sink that hands batches to a {@link BufferedMutator}, which groups them into multi-row RPCs per region server.
+ * Closing the sink closes the mutator.
+ * <p>
+ * A BufferedMutator only supports Puts and Deletes, and it sends and retries them in the background, reporting
+ * failures on a later call. This sink therefore refuses other mutations, and cannot be used where a write must be
+ * applied or have failed by the time it returns, as for Increments, which are not idempotent; use a
+ * {@link TableSink} there.
+ */
+public class BufferedMutatorSink implements MutationSink {
+    private final BufferedMutator mutator;
+
+    public BufferedMutatorSink(BufferedMutator mutator) {
+        this.mutator = checkNotNull(mutator, "mutator cannot be null");
+    }
+
+    /**
+     * @throws IllegalArgumentException if a mutation is neither a Put nor a Delete, in which case none is written.
+     */
+    @Override
+    public void write(List<? extends Mutation> mutations) throws IOException {
+        for (Mutation mutation : mutations) {
+            checkArgument(mutation instanceof Put || mutation instanceof Delete,
+                "A BufferedMutator only writes Puts and Deletes, not %s", mutation.getClass().getSimpleName());
+        }
+        mutator.mutate(mutations);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        mutator.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mutator.close();
+    }
+}
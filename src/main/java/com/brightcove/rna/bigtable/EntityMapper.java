@@ -6,6 +6,9 @@ import org.apache.avro.generic.IndexedRecord;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -13,6 +16,8 @@ import java.util.Set;
  * and a StorageKey/Entity to an HBase Put instances.
  * <p>
  * EntityMapper instances should be state-less so they can be reused across multiple Result and Entity instances.
+ * Implementations must also be thread-safe, so that a single instance can be shared by every thread mapping the
+ * same entity type; any scratch state needed while mapping a row has to be confined to the calling thread.
  * They should encapsulate in one place the mapping of business entities to and from HBase.
  *
  * @param <E> The entity type
@@ -37,6 +42,49 @@ public interface EntityMapper<E extends IndexedRecord> {
      */
     Put mapFromEntity(E entity);
 
+    /**
+     * Map a batch of HBase Result instances to entities, e.g. the rows returned by
+     * {@code ResultScanner.next(int)}.
+     *
+     * @param results The HBase result instances.
+     * @return The entities, in the order of the results. An entry is null if its result is an empty row.
+     */
+    default List<E> mapToEntities(Result[] results) {
+        List<E> entities = new ArrayList<>(results.length);
+        for (Result result : results) {
+            entities.add(mapToEntity(result));
+        }
+        return entities;
+    }
+
+    /**
+     * Map a batch of HBase Result instances to entities.
+     *
+     * @param results The HBase result instances.
+     * @return The entities, in the order of the results. An entry is null if its result is an empty row.
+     */
+    default List<E> mapToEntities(Iterable<Result> results) {
+        List<E> entities = results instanceof Collection ? new ArrayList<>(((Collection<?>) results).size()) : new ArrayList<>();
+        for (Result result : results) {
+            entities.add(mapToEntity(result));
+        }
+        return entities;
+    }
+
+    /**
+     * Map a batch of entities to HBase Put instances.
+     *
+     * @param entities The entities to map.
+     * @return The Puts, in the order of the entities.
+     */
+    default List<Put> mapFromEntities(Iterable<? extends E> entities) {
+        List<Put> puts = entities instanceof Collection ? new ArrayList<>(((Collection<?>) entities).size()) : new ArrayList<>();
+        for (E entity : entities) {
+            puts.add(mapFromEntity(entity));
+        }
+        return puts;
+    }
+
     /**
      * Gets the set of required HBase columns that we would expect to be in the
      * result.
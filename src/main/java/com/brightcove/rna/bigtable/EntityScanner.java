@@ -0,0 +1,300 @@
+package com.brightcove.rna.bigtable;
+
+import org.apache.avro.generic.IndexedRecord;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.client.Table;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Iterates over the entities of a {@link ResultScanner}, fetching the next batches of results on a background
+ * thread while the current batch is mapped, so the wait for the scanner's RPCs overlaps with decoding.
+ * <p>
+ * The background thread takes batches of {@code caching} results from the scanner and hands them over through a
+ * queue holding at most {@code queueDepth} batches, which bounds the memory held by results fetched ahead. Rows
+ * the mapper maps to null are skipped. The scanner is owned by the EntityScanner: it is closed when the results run
+ * out, when fetching fails, or when the EntityScanner is closed.
+ * <p>
+ * An EntityScanner can be iterated once, by a single thread. The statistics may be read from any thread.
+ *
+ * @param <E> The entity type
+ */
+public class EntityScanner<E extends IndexedRecord> implements Iterable<E>, Closeable {
+    public static final int DEFAULT_CACHING = 100;
+    public static final int DEFAULT_QUEUE_DEPTH = 2;
+
+    /**
+     * Marks the end of the results, after the last batch or a failure.
+     */
+    private static final Result[] END = new Result[0];
+
+    private final ResultScanner scanner;
+    private final EntityMapper<E> entityMapper;
+    private final int caching;
+    private final BlockingQueue<Result[]> batches;
+
+    private final LongAdder resultsFetched = new LongAdder();
+    private final LongAdder batchesFetched = new LongAdder();
+    private final LongAdder entitiesMapped = new LongAdder();
+    private final LongAdder fetchNanos = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAdder decodeNanos = new LongAdder();
+
+    private Thread prefetcher;
+    private volatile boolean closed;
+    private volatile Throwable failure;
+
+    /**
+     * Creates a scanner with the default caching and queue depth.
+     */
+    public EntityScanner(ResultScanner scanner, EntityMapper<E> entityMapper) {
+        this(scanner, entityMapper, DEFAULT_CACHING, DEFAULT_QUEUE_DEPTH);
+    }
+
+    /**
+     * @param scanner      The scanner to take the results from.
+     * @param entityMapper The mapper used for every result.
+     * @param caching      The number of results fetched from the scanner at once.
+     * @param queueDepth   The number of fetched batches that can wait to be mapped.
+     */
+    public EntityScanner(ResultScanner scanner, EntityMapper<E> entityMapper, int caching, int queueDepth) {
+        checkNotNull(scanner, "scanner cannot be null");
+        checkNotNull(entityMapper, "entityMapper cannot be null");
+        checkArgument(caching > 0, "caching must be positive, was %s", caching);
+        checkArgument(queueDepth > 0, "queueDepth must be positive, was %s", queueDepth);
+        this.scanner = scanner;
+        this.entityMapper = entityMapper;
+        this.caching = caching;
+        this.batches = new ArrayBlockingQueue<>(queueDepth);
+    }
+
+    /**
+     * Opens a scanner on a table and wraps it. The scan's caching is set to the given caching, so every batch the
+     * background thread takes from the scanner is fetched with a single RPC.
+     *
+     * @param table        The table to scan.
+     * @param scan         The scan.
+     * @param entityMapper The mapper used for every result.
+     * @param caching      The number of results fetched at once.
+     * @param queueDepth   The number of fetched batches that can wait to be mapped.
+     * @return The entity scanner.
+     * @throws IOException if the scanner cannot be opened.
+     */
+    public static <E extends IndexedRecord> EntityScanner<E> open(Table table, Scan scan, EntityMapper<E> entityMapper,
+                                                                  int caching, int queueDepth) throws IOException {
+        scan.setCaching(caching);
+        return new EntityScanner<>(table.getScanner(scan), entityMapper, caching, queueDepth);
+    }
+
+    /**
+     * Starts fetching results and returns an iterator over their entities. Fetch failures are thrown by the
+     * iterator as {@link UncheckedIOException}s (or as the runtime exception the scanner threw).
+     *
+     * @return The iterator.
+     * @throws IllegalStateException if the scanner was already iterated or closed.
+     */
+    @Override
+    public synchronized Iterator<E> iterator() {
+        checkState(prefetcher == null, "An EntityScanner can only be iterated once");
+        checkState(!closed, "EntityScanner is closed");
+        prefetcher = new Thread(this::prefetch, "entity-scanner-prefetch");
+        prefetcher.setDaemon(true);
+        prefetcher.start();
+        return new EntityIterator();
+    }
+
+    @Override
+    public Spliterator<E> spliterator() {
+        return Spliterators.spliteratorUnknownSize(iterator(), Spliterator.ORDERED | Spliterator.NONNULL);
+    }
+
+    /**
+     * @return A sequential stream of the entities, which closes this scanner when it is closed.
+     */
+    public Stream<E> stream() {
+        return StreamSupport.stream(spliterator(), false).onClose(this::close);
+    }
+
+    /**
+     * Stops fetching and closes the underlying scanner. Results fetched ahead are dropped, and an iterator waiting
+     * for results finds no more entities.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (prefetcher == null) {
+            scanner.close();
+        } else {
+            // the prefetch thread owns the scanner and closes it on its way out
+            prefetcher.interrupt();
+            // clearing the queue could remove the end the prefetch thread signalled, so signal it again afterwards
+            // to wake up an iterator waiting for a batch
+            batches.clear();
+            batches.offer(END);
+        }
+    }
+
+    /**
+     * @return The number of results fetched from the scanner.
+     */
+    public long getResultsFetched() {
+        return resultsFetched.sum();
+    }
+
+    /**
+     * @return The number of non-empty batches fetched from the scanner.
+     */
+    public long getBatchesFetched() {
+        return batchesFetched.sum();
+    }
+
+    /**
+     * @return The number of entities returned by the iterator.
+     */
+    public long getEntitiesMapped() {
+        return entitiesMapped.sum();
+    }
+
+    /**
+     * @return The time the background thread spent in the scanner, in nanoseconds.
+     */
+    public long getFetchNanos() {
+        return fetchNanos.sum();
+    }
+
+    /**
+     * @return The time the iterating thread spent waiting for fetched batches, in nanoseconds. When this is small
+     * compared to {@link #getDecodeNanos()}, the scan is bound by decoding rather than by the RPCs.
+     */
+    public long getWaitNanos() {
+        return waitNanos.sum();
+    }
+
+    /**
+     * @return The time the iterating thread spent mapping results to entities, in nanoseconds.
+     */
+    public long getDecodeNanos() {
+        return decodeNanos.sum();
+    }
+
+    private void prefetch() {
+        try {
+            while (!closed) {
+                long start = System.nanoTime();
+                Result[] batch = scanner.next(caching);
+                fetchNanos.add(System.nanoTime() - start);
+                if (batch == null || batch.length == 0) {
+                    break;
+                }
+                resultsFetched.add(batch.length);
+                batchesFetched.increment();
+                batches.put(batch);
+            }
+        } catch (InterruptedException e) {
+            // closed while waiting for the iterator to catch up
+        } catch (IOException | RuntimeException | Error e) {
+            failure = e;
+        } finally {
+            scanner.close();
+            signalEnd();
+        }
+    }
+
+    private void signalEnd() {
+        try {
+            if (!closed) {
+                batches.put(END);
+                return;
+            }
+        } catch (InterruptedException e) {
+            // closed while waiting for room
+        }
+        // close() emptied the queue and signalled the end itself, so this may fail
+        batches.offer(END);
+    }
+
+    private class EntityIterator implements Iterator<E> {
+        private Result[] batch = new Result[0];
+        private int index;
+        private E next;
+        private boolean done;
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && !done) {
+                if (index == batch.length) {
+                    takeBatch();
+                    continue;
+                }
+                long start = System.nanoTime();
+                next = entityMapper.mapToEntity(batch[index]);
+                // drop the reference so the result can be collected before the batch is done
+                batch[index++] = null;
+                decodeNanos.add(System.nanoTime() - start);
+            }
+            return next != null;
+        }
+
+        @Override
+        public E next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            E entity = next;
+            next = null;
+            entitiesMapped.increment();
+            return entity;
+        }
+
+        private void takeBatch() {
+            checkState(!closed, "EntityScanner is closed");
+            long start = System.nanoTime();
+            try {
+                batch = batches.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for results", e);
+            } finally {
+                waitNanos.add(System.nanoTime() - start);
+            }
+            index = 0;
+            if (batch == END || closed) {
+                // a batch taken after close() is one of the results fetched ahead, which are dropped
+                batch = END;
+                done = true;
+                throwFailure();
+            }
+        }
+
+        private void throwFailure() {
+            Throwable t = failure;
+            if (t instanceof IOException) {
+                throw new UncheckedIOException((IOException) t);
+            } else if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            } else if (t instanceof Error) {
+                throw (Error) t;
+            }
+        }
+    }
+}
@@ -0,0 +1,636 @@
+package com.brightcove.rna.bigtable;
+
+import org.apache.avro.generic.IndexedRecord;
+import org.apache.hadoop.hbase.client.Mutation;
+import org.apache.hadoop.hbase.client.Put;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Writes entities to a {@link MutationSink} in batches, instead of sending one Put per entity.
+ * <p>
+ * Entities are mapped to Puts with {@link EntityMapper#mapFromEntity} on worker threads and collected into a batch,
+ * which is handed to a background thread once it holds {@code maxBatchSize} Puts or {@code maxBatchBytes} bytes
+ * (as estimated by {@link Put#heapSize()}), or once its first Put is older than the flush interval. The background
+ * thread writes the batches to the sink one at a time, in the order they were completed.
+ * <p>
+ * The bytes of the Puts that were mapped but not written to the sink yet are the in-flight bytes. {@link #write}
+ * blocks while they reach {@code maxInFlightBytes}, or while {@code maxBatchSize} entities wait for a worker, so a
+ * slow sink holds the producers back instead of filling the heap.
+ * <p>
+ * With more than one mapping thread, entities written one after the other may end up in the sink in a different
+ * order. Entities of the same row should therefore be written with a single mapping thread (which keeps the order),
+ * or with a {@link #flush()} in between. With no mapping threads, entities are mapped on the thread writing them.
+ * <p>
+ * A failure to map an entity or to write a batch is thrown by the next call to {@link #write} or {@link #flush()},
+ * and the writer drops everything written after it. EntityWriters are thread-safe.
+ *
+ * @param <E> The entity type
+ */
+public class EntityWriter<E extends IndexedRecord> implements Closeable {
+    public static final int DEFAULT_MAX_BATCH_SIZE = 1000;
+    public static final long DEFAULT_MAX_BATCH_BYTES = 2L * 1024 * 1024;
+    public static final long DEFAULT_MAX_IN_FLIGHT_BYTES = 16L * 1024 * 1024;
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000;
+
+    private final EntityMapper<E> entityMapper;
+    private final MutationSink sink;
+    private final int maxBatchSize;
+    private final long maxBatchBytes;
+    private final long maxInFlightBytes;
+    private final long flushIntervalNanos;
+    private final ExecutorService workers;
+    private final Thread flusher;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // signalled when in-flight bytes are released or an entity is taken by a worker
+    private final Condition belowLimits = lock.newCondition();
+    // signalled when a batch is completed, and on close
+    private final Condition batchCompleted = lock.newCondition();
+    // signalled when written entities reach the sink
+    private final Condition entitiesWritten = lock.newCondition();
+
+    // guarded by lock
+    private final Deque<Batch> completed = new ArrayDeque<>();
+    private List<Mutation> batch = new ArrayList<>();
+    // the generation of the entity of each mutation in the batch
+    private List<Generation> batchGenerations = new ArrayList<>();
+    private long batchBytes;
+    private long batchStartNanos;
+    private long inFlightBytes;
+    private int queuedEntities;
+    // the entities written since the last flush started
+    private Generation generation = new Generation(null);
+    // set when close() starts, which rejects new entities
+    private boolean closed;
+    // set once close() flushed the writer, which stops the flush thread
+    private boolean stopped;
+    private volatile IOException failure;
+
+    private final LongAdder mutationsWritten = new LongAdder();
+    private final LongAdder batchesWritten = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder flushNanos = new LongAdder();
+    private final LongAccumulator maxFlushNanos = new LongAccumulator(Math::max, 0);
+    private final LongAdder blockedNanos = new LongAdder();
+    private volatile long statsStartNanos = System.nanoTime();
+
+    /**
+     * Creates a writer with the default limits, mapping on one thread per processor.
+     */
+    public EntityWriter(EntityMapper<E> entityMapper, MutationSink sink) {
+        this(new Builder<>(entityMapper, sink));
+    }
+
+    private EntityWriter(Builder<E> builder) {
+        this.entityMapper = builder.entityMapper;
+        this.sink = builder.sink;
+        this.maxBatchSize = builder.maxBatchSize;
+        this.maxBatchBytes = builder.maxBatchBytes;
+        this.maxInFlightBytes = builder.maxInFlightBytes;
+        this.flushIntervalNanos = builder.flushIntervalNanos;
+        if (builder.mappingThreads > 0) {
+            AtomicInteger threads = new AtomicInteger();
+            this.workers = Executors.newFixedThreadPool(builder.mappingThreads, runnable -> {
+                Thread thread = new Thread(runnable, "entity-writer-mapper-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            this.workers = null;
+        }
+        this.flusher = new Thread(this::writeBatches, "entity-writer-flush");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * @param entityMapper The mapper used for every entity.
+     * @param sink         The sink the batches are written to, which is closed with the writer.
+     * @return A builder for a writer, set up with the default limits.
+     */
+    public static <E extends IndexedRecord> Builder<E> builder(EntityMapper<E> entityMapper, MutationSink sink) {
+        return new Builder<>(entityMapper, sink);
+    }
+
+    /**
+     * Queues an entity to be written, blocking while the writer is at its limits.
+     *
+     * @param entity The entity.
+     * @throws IOException if an earlier entity could not be mapped or written, or if interrupted while blocked.
+     * @throws IllegalStateException if the writer is closed.
+     */
+    public void write(E entity) throws IOException {
+        checkNotNull(entity, "entity cannot be null");
+        Generation entityGeneration;
+        lock.lock();
+        try {
+            if (inFlightBytes >= maxInFlightBytes || queuedEntities >= maxBatchSize) {
+                long start = System.nanoTime();
+                while (failure == null && !closed && (inFlightBytes >= maxInFlightBytes || queuedEntities >= maxBatchSize)) {
+                    belowLimits.await();
+                }
+                blockedNanos.add(System.nanoTime() - start);
+            }
+            throwIfFailed();
+            checkState(!closed, "EntityWriter is closed");
+            queuedEntities++;
+            entityGeneration = generation;
+            entityGeneration.queued++;
+            entityGeneration.pending++;
+        } catch (InterruptedException e) {
+            throw interrupted("Interrupted while waiting for in-flight writes", e);
+        } finally {
+            lock.unlock();
+        }
+        if (workers == null) {
+            map(entity, entityGeneration);
+            throwIfFailed();
+        } else {
+            try {
+                workers.execute(() -> map(entity, entityGeneration));
+            } catch (RejectedExecutionException e) {
+                // close() shut the workers down after this write got past the closed check
+                lock.lock();
+                try {
+                    queuedEntities--;
+                    entityGeneration.queued--;
+                    entityGeneration.pending--;
+                    entitiesWritten.signalAll();
+                    belowLimits.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                throw new IllegalStateException("EntityWriter is closed", e);
+            }
+        }
+    }
+
+    /**
+     * Queues entities to be written.
+     *
+     * @param entities The entities.
+     * @throws IOException if an entity could not be mapped or written, or if interrupted while blocked.
+     */
+    public void writeAll(Iterable<? extends E> entities) throws IOException {
+        for (E entity : entities) {
+            write(entity);
+        }
+    }
+
+    /**
+     * Writes the incomplete batch and waits until every entity written before the call reached the sink, then
+     * flushes the sink. Entities other threads write while the flush waits are not waited for.
+     *
+     * @throws IOException if an entity could not be mapped or written, or if interrupted while waiting.
+     */
+    public void flush() throws IOException {
+        lock.lock();
+        try {
+            // entities written from now on go to the next generation, so steady writers cannot hold the flush up
+            Generation flushed = generation;
+            flushed.flushed = true;
+            generation = new Generation(flushed);
+            completeBatch();
+            while (!flushed.isWritten() && failure == null) {
+                entitiesWritten.await();
+            }
+        } catch (InterruptedException e) {
+            throw interrupted("Interrupted while flushing", e);
+        } finally {
+            lock.unlock();
+        }
+        throwIfFailed();
+        // the flush thread may be writing a batch of entities written after the ones flushed
+        synchronized (sink) {
+            sink.flush();
+        }
+    }
+
+    /**
+     * Rejects new entities, flushes the writer, stops its threads and closes the sink.
+     *
+     * @throws IOException if an entity could not be mapped or written, or the sink could not be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            // entities written from now on would miss the final flush
+            closed = true;
+            belowLimits.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flush();
+        } finally {
+            lock.lock();
+            try {
+                stopped = true;
+                batchCompleted.signalAll();
+                belowLimits.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            if (workers != null) {
+                workers.shutdown();
+            }
+            try {
+                // after a failure the flush thread may still be dropping batches
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (sink) {
+                sink.close();
+            }
+        }
+    }
+
+    /**
+     * @return The number of mutations written to the sink.
+     */
+    public long getMutationsWritten() {
+        return mutationsWritten.sum();
+    }
+
+    /**
+     * @return The number of batches written to the sink.
+     */
+    public long getBatchesWritten() {
+        return batchesWritten.sum();
+    }
+
+    /**
+     * @return The estimated heap size of the mutations written to the sink, in bytes.
+     */
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    /**
+     * @return The time spent writing batches to the sink, in nanoseconds.
+     */
+    public long getFlushNanos() {
+        return flushNanos.sum();
+    }
+
+    /**
+     * @return The longest time spent writing a single batch to the sink, in nanoseconds.
+     */
+    public long getMaxFlushNanos() {
+        return maxFlushNanos.get();
+    }
+
+    /**
+     * @return The average time spent writing a batch to the sink, in nanoseconds.
+     */
+    public double getAverageFlushNanos() {
+        long batches = batchesWritten.sum();
+        return batches == 0 ? 0 : (double) flushNanos.sum() / batches;
+    }
+
+    /**
+     * @return The time writers spent blocked on the in-flight limits, in nanoseconds.
+     */
+    public long getBlockedNanos() {
+        return blockedNanos.sum();
+    }
+
+    /**
+     * @return The number of batches written per second since the writer was created or its stats were reset.
+     */
+    public double getBatchesPerSecond() {
+        return perSecond(batchesWritten.sum());
+    }
+
+    /**
+     * @return The number of bytes written per second since the writer was created or its stats were reset.
+     */
+    public double getBytesPerSecond() {
+        return perSecond(bytesWritten.sum());
+    }
+
+    /**
+     * @return The estimated heap size of the mutations that were mapped but not written to the sink yet, in bytes.
+     */
+    public long getInFlightBytes() {
+        lock.lock();
+        try {
+            return inFlightBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Resets the statistics.
+     */
+    public void resetStats() {
+        mutationsWritten.reset();
+        batchesWritten.reset();
+        bytesWritten.reset();
+        flushNanos.reset();
+        maxFlushNanos.reset();
+        blockedNanos.reset();
+        statsStartNanos = System.nanoTime();
+    }
+
+    private double perSecond(long count) {
+        long elapsed = System.nanoTime() - statsStartNanos;
+        return elapsed <= 0 ? 0 : count * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+    }
+
+    private void map(E entity, Generation entityGeneration) {
+        Put put = null;
+        long size = 0;
+        Throwable error = null;
+        try {
+            put = entityMapper.mapFromEntity(entity);
+            size = put.heapSize();
+        } catch (Throwable t) {
+            // the counts below are released whatever went wrong, or flush and close would wait forever
+            error = t;
+        }
+        lock.lock();
+        try {
+            queuedEntities--;
+            entityGeneration.queued--;
+            if (error != null || failure != null) {
+                // a failed entity and everything after a failure are dropped
+                entityGeneration.pending--;
+                if (error != null) {
+                    fail(new IOException("Failed to map entity", error));
+                } else {
+                    entitiesWritten.signalAll();
+                    belowLimits.signalAll();
+                }
+                return;
+            }
+            if (batch.isEmpty()) {
+                batchStartNanos = System.nanoTime();
+                // start the flush thread's timer
+                batchCompleted.signal();
+            }
+            batch.add(put);
+            batchGenerations.add(entityGeneration);
+            batchBytes += size;
+            inFlightBytes += size;
+            // a flushed generation completes the batch as soon as its last entity is mapped
+            boolean flushedGenerationMapped = entityGeneration.flushed && entityGeneration.queued == 0;
+            if (batch.size() >= maxBatchSize || batchBytes >= maxBatchBytes || flushedGenerationMapped) {
+                completeBatch();
+            }
+            belowLimits.signalAll();
+        } finally {
+            lock.unlock();
+            if (error instanceof VirtualMachineError) {
+                throw (VirtualMachineError) error;
+            }
+        }
+    }
+
+    /**
+     * Hands the current batch to the flush thread. Called with the lock held.
+     */
+    private void completeBatch() {
+        if (batch.isEmpty()) {
+            return;
+        }
+        completed.add(new Batch(batch, batchGenerations, batchBytes));
+        batch = new ArrayList<>();
+        batchGenerations = new ArrayList<>();
+        batchBytes = 0;
+        batchCompleted.signal();
+    }
+
+    /**
+     * The loop of the flush thread, which also completes the current batch once it is older than the interval.
+     */
+    private void writeBatches() {
+        while (true) {
+            Batch next;
+            lock.lock();
+            try {
+                while (completed.isEmpty()) {
+                    if (stopped) {
+                        if (batch.isEmpty()) {
+                            return;
+                        }
+                        completeBatch();
+                    } else if (batch.isEmpty()) {
+                        batchCompleted.await();
+                    } else {
+                        long age = System.nanoTime() - batchStartNanos;
+                        if (age >= flushIntervalNanos) {
+                            completeBatch();
+                        } else {
+                            batchCompleted.awaitNanos(flushIntervalNanos - age);
+                        }
+                    }
+                }
+                next = completed.poll();
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            write(next);
+        }
+    }
+
+    private void write(Batch next) {
+        IOException error = null;
+        if (failure == null) {
+            long start = System.nanoTime();
+            try {
+                synchronized (sink) {
+                    sink.write(next.mutations);
+                }
+            } catch (IOException e) {
+                error = e;
+            } catch (RuntimeException e) {
+                error = new IOException("Failed to write a batch", e);
+            }
+            long elapsed = System.nanoTime() - start;
+            if (error == null) {
+                mutationsWritten.add(next.mutations.size());
+                batchesWritten.increment();
+                bytesWritten.add(next.bytes);
+                flushNanos.add(elapsed);
+                maxFlushNanos.accumulate(elapsed);
+            }
+        }
+        lock.lock();
+        try {
+            inFlightBytes -= next.bytes;
+            for (Generation entityGeneration : next.generations) {
+                entityGeneration.pending--;
+            }
+            if (error != null) {
+                fail(error);
+            }
+            belowLimits.signalAll();
+            entitiesWritten.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records the first failure and wakes up every waiting thread. Called with the lock held.
+     */
+    private void fail(IOException error) {
+        if (failure == null) {
+            failure = error;
+        }
+        belowLimits.signalAll();
+        entitiesWritten.signalAll();
+    }
+
+    private void throwIfFailed() throws IOException {
+        IOException error = failure;
+        if (error != null) {
+            throw new IOException("EntityWriter failed: " + error.getMessage(), error);
+        }
+    }
+
+    private static InterruptedIOException interrupted(String message, InterruptedException cause) {
+        Thread.currentThread().interrupt();
+        InterruptedIOException exception = new InterruptedIOException(message);
+        exception.initCause(cause);
+        return exception;
+    }
+
+    private static final class Batch {
+        final List<Mutation> mutations;
+        final List<Generation> generations;
+        final long bytes;
+
+        Batch(List<Mutation> mutations, List<Generation> generations, long bytes) {
+            this.mutations = mutations;
+            this.generations = generations;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * The entities written between the starts of two flushes. A flush waits for the entities of the generation it
+     * ends and of the generations before it. Guarded by the lock.
+     */
+    private static final class Generation {
+        // the generation before this one, until all of its entities reached the sink
+        private Generation previous;
+        // the entities waiting for a worker
+        int queued;
+        // the entities that neither reached the sink nor were dropped
+        long pending;
+        // set once a flush waits for this generation
+        boolean flushed;
+
+        Generation(Generation previous) {
+            this.previous = previous;
+        }
+
+        /**
+         * @return True if every entity of this generation and of the ones before it reached the sink or was dropped.
+         */
+        boolean isWritten() {
+            if (previous != null && previous.isWritten()) {
+                previous = null;
+            }
+            return previous == null && pending == 0;
+        }
+    }
+
+    public static class Builder<X extends IndexedRecord> {
+        private final EntityMapper<X> entityMapper;
+        private final MutationSink sink;
+        private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+        private long maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+        private long maxInFlightBytes = DEFAULT_MAX_IN_FLIGHT_BYTES;
+        private long flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_FLUSH_INTERVAL_MILLIS);
+        private int mappingThreads = Runtime.getRuntime().availableProcessors();
+
+        private Builder(EntityMapper<X> entityMapper, MutationSink sink) {
+            this.entityMapper = checkNotNull(entityMapper, "entityMapper cannot be null");
+            this.sink = checkNotNull(sink, "sink cannot be null");
+        }
+
+        /**
+         * @param maxBatchSize The number of Puts that completes a batch.
+         */
+        public Builder<X> withMaxBatchSize(int maxBatchSize) {
+            checkArgument(maxBatchSize > 0, "maxBatchSize must be positive, was %s", maxBatchSize);
+            this.maxBatchSize = maxBatchSize;
+            return this;
+        }
+
+        /**
+         * @param maxBatchBytes The estimated heap size of the Puts that completes a batch.
+         */
+        public Builder<X> withMaxBatchBytes(long maxBatchBytes) {
+            checkArgument(maxBatchBytes > 0, "maxBatchBytes must be positive, was %s", maxBatchBytes);
+            this.maxBatchBytes = maxBatchBytes;
+            return this;
+        }
+
+        /**
+         * @param maxInFlightBytes The in-flight bytes at which writes block. At least the maximum batch bytes.
+         */
+        public Builder<X> withMaxInFlightBytes(long maxInFlightBytes) {
+            checkArgument(maxInFlightBytes > 0, "maxInFlightBytes must be positive, was %s", maxInFlightBytes);
+            this.maxInFlightBytes = maxInFlightBytes;
+            return this;
+        }
+
+        /**
+         * @param interval The time after which an incomplete batch is written anyway.
+         * @param unit     The unit of the interval.
+         */
+        public Builder<X> withFlushInterval(long interval, TimeUnit unit) {
+            checkArgument(interval > 0, "interval must be positive, was %s", interval);
+            this.flushIntervalNanos = unit.toNanos(interval);
+            return this;
+        }
+
+        /**
+         * @param mappingThreads The number of threads mapping entities, or 0 to map them on the writing threads.
+         */
+        public Builder<X> withMappingThreads(int mappingThreads) {
+            checkArgument(mappingThreads >= 0, "mappingThreads cannot be negative, was %s", mappingThreads);
+            this.mappingThreads = mappingThreads;
+            return this;
+        }
+
+        public EntityWriter<X> build() {
+            // otherwise the in-flight limit could be reached by a batch that is not complete
+            checkArgument(maxInFlightBytes >= maxBatchBytes,
+                "maxInFlightBytes (%s) cannot be less than maxBatchBytes (%s)", maxInFlightBytes, maxBatchBytes);
+            return new EntityWriter<>(this);
+        }
+    }
+}
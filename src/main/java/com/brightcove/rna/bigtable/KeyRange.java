@@ -0,0 +1,112 @@
+package com.brightcove.rna.bigtable;
+
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.util.Arrays;
+
+/**
+ * A range of row keys, from an inclusive start row to an exclusive stop row, in the form a {@link Scan} takes
+ * them. An empty start or stop row leaves that end of the range unbounded.
+ */
+public final class KeyRange {
+    private final byte[] startRow;
+    private final byte[] stopRow;
+
+    public KeyRange(byte[] startRow, byte[] stopRow) {
+        this.startRow = startRow;
+        this.stopRow = stopRow;
+    }
+
+    /**
+     * Returns a range holding no row key. Its start row is after its stop row, so a scan of it returns no rows,
+     * whereas HBase scans the single start row of a range whose start and stop rows are equal.
+     *
+     * @return The empty range.
+     */
+    public static KeyRange empty() {
+        return new KeyRange(new byte[]{1}, new byte[]{0});
+    }
+
+    /**
+     * @return True if no row key is in the range.
+     */
+    public boolean isEmpty() {
+        return stopRow.length > 0 && Bytes.compareTo(startRow, stopRow) >= 0;
+    }
+
+    /**
+     * @return The first row key in the range, or an empty array if the range has no lower bound.
+     */
+    public byte[] getStartRow() {
+        return startRow;
+    }
+
+    /**
+     * @return The first row key after the range, or an empty array if the range has no upper bound.
+     */
+    public byte[] getStopRow() {
+        return stopRow;
+    }
+
+    /**
+     * Restricts a scan to the rows of this range.
+     *
+     * @param scan The scan.
+     * @return The scan.
+     */
+    public Scan applyTo(Scan scan) {
+        return scan.setStartRow(startRow).setStopRow(stopRow);
+    }
+
+    /**
+     * @return A new scan over the rows of this range.
+     */
+    public Scan toScan() {
+        return applyTo(new Scan());
+    }
+
+    /**
+     * Returns the smallest row key that is greater than every row key starting with the given prefix: the
+     * prefix with its trailing 0xff bytes dropped and its last byte incremented.
+     *
+     * @param prefix The row key prefix.
+     * @return The successor, or an empty array if the prefix is empty or made only of 0xff bytes, in which case
+     * no row key is greater than every key with that prefix.
+     */
+    public static byte[] prefixSuccessor(byte[] prefix) {
+        int length = prefix.length;
+        while (length > 0 && prefix[length - 1] == (byte) 0xff) {
+            length--;
+        }
+        if (length == 0) {
+            return HConstants.EMPTY_END_ROW;
+        }
+        byte[] successor = Arrays.copyOf(prefix, length);
+        successor[length - 1]++;
+        return successor;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof KeyRange)) {
+            return false;
+        }
+        KeyRange other = (KeyRange) o;
+        return Arrays.equals(startRow, other.startRow) && Arrays.equals(stopRow, other.stopRow);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(startRow) + Arrays.hashCode(stopRow);
+    }
+
+    @Override
+    public String toString() {
+        return "[" + Bytes.toStringBinary(startRow) + ", " + Bytes.toStringBinary(stopRow) + ")";
+    }
+}
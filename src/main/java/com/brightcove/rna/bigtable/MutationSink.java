@@ -0,0 +1,33 @@
+package com.brightcove.rna.bigtable;
+
+import org.apache.hadoop.hbase.client.Mutation;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The destination of the batches of mutations written by an {@link EntityWriter}, e.g. a {@link BufferedMutatorSink}
+ * or a {@link TableSink}.
+ * <p>
+ * Implementations are only called by one thread at a time: the writers synchronize on the sink around every call.
+ */
+public interface MutationSink extends Closeable {
+
+    /**
+     * Writes a batch of mutations. The sink may buffer them until {@link #flush()}, and may not support every kind
+     * of mutation: a {@link BufferedMutatorSink} only writes Puts and Deletes.
+     *
+     * @param mutations The mutations.
+     * @throws IOException if the mutations could not be written.
+     */
+    void write(List<? extends Mutation> mutations) throws IOException;
+
+    /**
+     * Sends the mutations the sink buffered.
+     *
+     * @throws IOException if the mutations could not be written.
+     */
+    default void flush() throws IOException {
+    }
+}
@@ -0,0 +1,39 @@
+package com.brightcove.rna.bigtable;
+
+import org.apache.hadoop.hbase.client.Mutation;
+import org.apache.hadoop.hbase.client.Table;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A sink that sends every batch to a {@link Table} with a single {@link Table#batch} call, so a batch is written
+ * when {@link #write} returns. Closing the sink closes the table.
+ */
+public class TableSink implements MutationSink {
+    private final Table table;
+
+    public TableSink(Table table) {
+        this.table = checkNotNull(table, "table cannot be null");
+    }
+
+    @Override
+    public void write(List<? extends Mutation> mutations) throws IOException {
+        try {
+            table.batch(mutations, new Object[mutations.size()]);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException exception = new InterruptedIOException("Interrupted while writing a batch");
+            exception.initCause(e);
+            throw exception;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        table.close();
+    }
+}
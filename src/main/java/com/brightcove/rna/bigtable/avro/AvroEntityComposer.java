@@ -1,14 +1,18 @@
 package com.brightcove.rna.bigtable.avro;
 
 import com.brightcove.rna.bigtable.core.MappingType;
+import com.google.common.collect.ImmutableMap;
 import org.apache.avro.Schema;
 import org.apache.avro.Schema.Field;
 import org.apache.avro.generic.IndexedRecord;
+import org.apache.avro.specific.SpecificData;
+import org.apache.avro.specific.SpecificRecord;
 
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
@@ -36,8 +40,23 @@ public class AvroEntityComposer<E extends IndexedRecord> {
         this.avroSchema = avroEntitySchema;
         this.specific = specific;
         this.recordBuilderFactory = buildAvroRecordBuilderFactory(avroEntitySchema.getAvroSchema());
-        this.kacRecordBuilderFactories = new HashMap<>();
-        initRecordBuilderFactories();
+        this.kacRecordBuilderFactories = ImmutableMap.copyOf(buildKacRecordBuilderFactories());
+    }
+
+    /**
+     * AvroEntityComposer constructor for Specific records of a known class, which is used instead of the class
+     * named by the schema.
+     *
+     * @param avroEntitySchema The schema for the Avro entities this composer composes.
+     * @param entityClass      The class of the entities.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    AvroEntityComposer(AvroEntitySchema avroEntitySchema, Class<E> entityClass) {
+        checkArgument(SpecificRecord.class.isAssignableFrom(entityClass), "%s is not a SpecificRecord", entityClass);
+        this.avroSchema = avroEntitySchema;
+        this.specific = true;
+        this.recordBuilderFactory = new SpecificAvroRecordBuilderFactory(entityClass);
+        this.kacRecordBuilderFactories = ImmutableMap.copyOf(buildKacRecordBuilderFactories());
     }
 
     /**
@@ -56,6 +75,15 @@ public class AvroEntityComposer<E extends IndexedRecord> {
          */
         Builder<E> put(String fieldName, Object value);
 
+        /**
+         * Put a field value into the entity.
+         *
+         * @param pos   The position of the field in the entity schema
+         * @param value The value of the field
+         * @return A reference to the Builder, so puts can be chained.
+         */
+        Builder<E> put(int pos, Object value);
+
         /**
          * Builds the entity, and returns it.
          *
@@ -75,6 +103,12 @@ public class AvroEntityComposer<E extends IndexedRecord> {
                 return this;
             }
 
+            @Override
+            public Builder<E> put(int pos, Object value) {
+                recordBuilder.put(pos, value);
+                return this;
+            }
+
             @Override
             public E build() {
                 return recordBuilder.build();
@@ -86,6 +120,21 @@ public class AvroEntityComposer<E extends IndexedRecord> {
         Schema schema = avroSchema.getAvroSchema();
         Field field = schema.getField(fieldName);
         checkNotNull(field, "No field named %s in schema %s", fieldName, schema);
+        return extractField(entity, field);
+    }
+
+    /**
+     * Extract a field value from an entity by position, avoiding the lookup of the field by name.
+     *
+     * @param entity The entity
+     * @param pos    The position of the field in the entity schema
+     * @return The field value
+     */
+    public Object extractField(E entity, int pos) {
+        return extractField(entity, avroSchema.getAvroSchema().getFields().get(pos));
+    }
+
+    private Object extractField(E entity, Field field) {
         Object fieldValue = entity.get(field.pos());
         if (fieldValue == null) {
             // if the field value is null, and the field is a primitive type,
@@ -149,13 +198,28 @@ public class AvroEntityComposer<E extends IndexedRecord> {
         return null;
     }
 
+    /**
+     * Returns the factory of the builders of a keyAsColumn record field's values.
+     *
+     * @param fieldName The name of a keyAsColumn mapped record field.
+     * @return The factory.
+     */
+    AvroRecordBuilderFactory<E> getKeyAsColumnRecordBuilderFactory(String fieldName) {
+        AvroRecordBuilderFactory<E> factory = kacRecordBuilderFactories.get(fieldName);
+        checkArgument(factory != null, "No keyAsColumn record field named %s", fieldName);
+        return factory;
+    }
+
     /**
      * Initialize the AvroRecordBuilderFactories for all keyAsColumn mapped fields
      * that are record types. We need to be able to get record builders for these
      * since the records are broken across many columns, and need to be
      * constructed by the composer.
+     *
+     * @return The factories by field name.
      */
-    private void initRecordBuilderFactories() {
+    private Map<String, AvroRecordBuilderFactory<E>> buildKacRecordBuilderFactories() {
+        Map<String, AvroRecordBuilderFactory<E>> kacRecordBuilderFactories = new HashMap<>();
         avroSchema.getFieldMappings()
             .stream()
             .filter(fieldMapping -> fieldMapping.mappingType() == MappingType.KEY_AS_COLUMN)
@@ -168,6 +232,7 @@ public class AvroEntityComposer<E extends IndexedRecord> {
                     kacRecordBuilderFactories.put(fieldName, factory);
                 }
             });
+        return kacRecordBuilderFactories;
     }
 
     /**
@@ -182,12 +247,10 @@ public class AvroEntityComposer<E extends IndexedRecord> {
         if (!specific) {
             return (AvroRecordBuilderFactory<E>) new GenericAvroRecordBuilderFactory(schema);
         }
-        Class<E> specificClass;
-        String className = schema.getFullName();
-        try {
-            specificClass = (Class<E>) Class.forName(className);
-        } catch (ClassNotFoundException e) {
-            throw new IllegalStateException(String.format("Could not get Class instance for %s", className));
+        // SpecificData caches the classes by name, so composers of the same records load them once
+        Class<E> specificClass = (Class<E>) SpecificData.get().getClass(schema);
+        if (specificClass == null) {
+            throw new IllegalStateException(String.format("Could not get Class instance for %s", schema.getFullName()));
         }
         return new SpecificAvroRecordBuilderFactory(specificClass);
     }
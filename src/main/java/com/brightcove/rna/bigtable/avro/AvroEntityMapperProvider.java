@@ -1,7 +1,13 @@
 package com.brightcove.rna.bigtable.avro;
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import org.apache.avro.Schema;
+import org.apache.avro.SchemaNormalization;
 import org.apache.avro.generic.GenericData;
 import org.apache.avro.generic.IndexedRecord;
 import org.apache.avro.reflect.ReflectData;
@@ -9,36 +15,130 @@ import org.apache.avro.specific.SpecificData;
 import org.apache.avro.specific.SpecificRecord;
 
 import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Builds the entity mappers of specific record classes.
+ * <p>
+ * Building a mapper parses its schema several times, so built mappers are kept in a bounded cache keyed by the
+ * record class and the fingerprints of the schemas, and the schema of a class is only resolved once. Mappers are
+ * thread-safe, so the cached instances are shared by all callers.
+ */
 public class AvroEntityMapperProvider {
+    /**
+     * The maximum number of mappers kept in the cache. The least recently used ones are evicted first.
+     */
+    public static final int MAX_CACHED_MAPPERS = 1000;
+
     private static final AvroKeyEntitySchemaParser parser = new AvroKeyEntitySchemaParser();
 
-    public static <E extends SpecificRecord> AvroEntityMapper<E> forClass(Class<E> clazz) {
-        Schema schema = resolveSchemaFromClass(clazz);
-        Preconditions.checkNotNull(schema, "Unable to resolve avro schmea for class %s", clazz.toString());
+    private static final Cache<MapperKey, AvroEntityMapper<?>> mappers = CacheBuilder.newBuilder()
+        .maximumSize(MAX_CACHED_MAPPERS)
+        .recordStats()
+        .build();
 
-        return forSchemaAndClass(schema.toString(), clazz);
+    private static final ClassValue<String> classSchemas = new ClassValue<String>() {
+        @Override
+        protected String computeValue(Class<?> clazz) {
+            Schema schema = resolveSchemaFromClass(clazz);
+            Preconditions.checkNotNull(schema, "Unable to resolve avro schmea for class %s", clazz.toString());
+            return schema.toString();
+        }
+    };
+
+    public static <E extends SpecificRecord> AvroEntityMapper<E> forClass(Class<E> clazz) {
+        return forSchemaAndClass(classSchemas.get(clazz), clazz);
     }
 
     public static <E extends SpecificRecord> AvroEntityMapper<E> forSchemaAndClass(String schemaStr, Class<E> clazz) {
+        return forSchemaAndClass(schemaStr, Collections.<String>emptyList(), clazz);
+    }
+
+    /**
+     * Creates a mapper that also reads rows written with an older version of the schema.
+     *
+     * @param schemaStr       The current schema, used to write entities and as the reader schema.
+     * @param writerSchemaStr The older schema the stored data may have been written with.
+     * @param clazz           The specific record class of the entities.
+     */
+    public static <E extends SpecificRecord> AvroEntityMapper<E> forSchemaAndClass(String schemaStr, String writerSchemaStr,
+                                                                                 Class<E> clazz) {
+        return forSchemaAndClass(schemaStr, Collections.singletonList(writerSchemaStr), clazz);
+    }
+
+    /**
+     * Creates a mapper that also reads rows written with older versions of the schema, see
+     * {@link AvroEntitySerDe#AvroEntitySerDe(AvroEntityComposer, AvroEntitySchema, List, boolean)}.
+     *
+     * @param schemaStr        The current schema, used to write entities and as the reader schema.
+     * @param writerSchemaStrs The older schemas the stored data may have been written with.
+     * @param clazz            The specific record class of the entities.
+     * @throws IllegalArgumentException if the cells written with an older schema cannot be read with the current one.
+     */
+    public static <E extends SpecificRecord> AvroEntityMapper<E> forSchemaAndClass(String schemaStr, List<String> writerSchemaStrs,
+                                                                                 Class<E> clazz) {
+        long[] writerSchemaFingerprints = new long[writerSchemaStrs.size()];
+        for (int i = 0; i < writerSchemaFingerprints.length; i++) {
+            writerSchemaFingerprints[i] = fingerprint(writerSchemaStrs.get(i));
+        }
+        MapperKey key = new MapperKey(clazz, fingerprint(schemaStr), writerSchemaFingerprints);
+        try {
+            @SuppressWarnings("unchecked")
+            AvroEntityMapper<E> mapper = (AvroEntityMapper<E>) mappers.get(key, () -> buildMapper(schemaStr, writerSchemaStrs, clazz));
+            return mapper;
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    /**
+     * @return The hit, miss, load and eviction counts of the mapper cache.
+     */
+    public static CacheStats getCacheStats() {
+        return mappers.stats();
+    }
+
+    /**
+     * Removes all mappers from the cache.
+     */
+    public static void invalidateCache() {
+        mappers.invalidateAll();
+    }
+
+    private static <E extends SpecificRecord> AvroEntityMapper<E> buildMapper(String schemaStr, List<String> writerSchemaStrs,
+                                                                            Class<E> clazz) {
         // get entity schema
         AvroEntitySchema readerSchema = parser.parseEntitySchema(schemaStr);
         readerSchema = AvroUtils.mergeSpecificStringTypes(clazz, readerSchema);
-        AvroEntityComposer<E> entityComposer = new AvroEntityComposer<>(readerSchema, true);
-        AvroEntitySerDe<E> entitySerDe = new AvroEntitySerDe<>(entityComposer, readerSchema, true);
+        List<Schema> writerSchemas = new ArrayList<>(writerSchemaStrs.size());
+        for (String writerSchemaStr : writerSchemaStrs) {
+            writerSchemas.add(parser.parseEntitySchema(writerSchemaStr).getAvroSchema());
+        }
+        AvroEntityComposer<E> entityComposer = new AvroEntityComposer<>(readerSchema, clazz);
+        AvroEntitySerDe<E> entitySerDe = new AvroEntitySerDe<>(entityComposer, readerSchema, writerSchemas, true);
 
         // get key serde
         AvroKeySchema keySchema = parser.parseKeySchema(schemaStr);
         keySchema = AvroUtils.mergeSpecificStringTypes(clazz, keySchema);
-        AvroKeySerDe keySerDe = new AvroKeySerDe(keySchema.getAvroSchema());
+        AvroKeySerDe keySerDe = new AvroKeySerDe(keySchema.getAvroSchema(), readerSchema.getAvroSchema());
 
         return new AvroEntityMapper<>(keySchema, readerSchema, keySerDe, entitySerDe);
     }
 
+    /**
+     * Fingerprints the whole schema text rather than its parsing canonical form, which leaves out the mapping
+     * attributes and default values.
+     */
+    private static long fingerprint(String schemaStr) {
+        return SchemaNormalization.fingerprint64(schemaStr.getBytes(StandardCharsets.UTF_8));
+    }
+
     static <E> Schema resolveSchemaFromClass(Class<E> type) {
         Schema readerSchema = null;
         GenericData dataModel = getDataModelForType(type);
@@ -105,5 +205,34 @@ public class AvroEntityMapperProvider {
             }
         }
     }
-}
 
+    private static final class MapperKey {
+        private final Class<?> clazz;
+        private final long schemaFingerprint;
+        private final long[] writerSchemaFingerprints;
+
+        MapperKey(Class<?> clazz, long schemaFingerprint, long[] writerSchemaFingerprints) {
+            this.clazz = clazz;
+            this.schemaFingerprint = schemaFingerprint;
+            this.writerSchemaFingerprints = writerSchemaFingerprints;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof MapperKey)) {
+                return false;
+            }
+            MapperKey other = (MapperKey) o;
+            return clazz == other.clazz && schemaFingerprint == other.schemaFingerprint
+                && Arrays.equals(writerSchemaFingerprints, other.writerSchemaFingerprints);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * clazz.hashCode() + Long.hashCode(schemaFingerprint)) + Arrays.hashCode(writerSchemaFingerprints);
+        }
+    }
+}
@@ -1,37 +1,52 @@
 package com.brightcove.rna.bigtable.avro;
 
 import com.brightcove.rna.bigtable.EntitySerDe;
-import com.brightcove.rna.bigtable.avro.io.ColumnDecoder;
-import com.brightcove.rna.bigtable.avro.io.ColumnEncoder;
+import com.brightcove.rna.bigtable.avro.io.PrimitiveColumnCodec;
 import com.brightcove.rna.bigtable.core.FieldMapping;
 import com.brightcove.rna.bigtable.core.MappingType;
-import com.google.bigtable.repackaged.com.google.api.client.repackaged.com.google.common.base.Preconditions;
-import com.google.bigtable.repackaged.com.google.common.collect.ImmutableList;
-import com.google.bigtable.repackaged.com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
 import org.apache.avro.Schema;
+import org.apache.avro.SchemaNormalization;
+import org.apache.avro.generic.GenericData;
 import org.apache.avro.generic.GenericDatumReader;
 import org.apache.avro.generic.GenericDatumWriter;
 import org.apache.avro.generic.IndexedRecord;
 import org.apache.avro.io.*;
+import org.apache.avro.specific.SpecificData;
 import org.apache.avro.specific.SpecificDatumReader;
 import org.apache.avro.specific.SpecificDatumWriter;
 import org.apache.avro.util.Utf8;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import static com.brightcove.rna.bigtable.core.MappingType.*;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static org.apache.avro.Schema.Type.*;
 
+/**
+ * Serializes and deserializes the non-key fields of Avro entities.
+ * <p>
+ * Instances are thread-safe and meant to be shared: all lookup tables are built in the constructor and never
+ * modified afterwards, DatumWriters are stateless, and since Avro DatumReaders are not safe for concurrent use
+ * each thread gets its own through a ThreadLocal. Encoders, decoders and buffers come from the per-thread
+ * {@link CodecScratch}.
+ */
 public class AvroEntitySerDe<E extends IndexedRecord> implements EntitySerDe<E> {
 
     /**
@@ -44,74 +59,223 @@ public class AvroEntitySerDe<E extends IndexedRecord> implements EntitySerDe<E>
     /**
      * Boolean to indicate whether this is a specific record or generic record SerDe.
      */
-    private boolean specific;
+    private final boolean specific;
 
     /**
      * The Avro schema for the Avro records this SerDe will serialize and deserialize.
      */
-    private AvroEntitySchema avroSchema;
+    private final AvroEntitySchema avroSchema;
 
     /**
-     * A mapping of Avro entity fields to their DatumReaders
+     * A mapping of column and counter field names to the handles that serialize and deserialize their values.
      */
-    private Map<String, DatumReader<Object>> fieldDatumReaders = new HashMap<>();
+    private final Map<String, ColumnHandle> columnHandles;
 
     /**
-     * A mapping of Avro entity field names to their DatumWriters
+     * A mapping of keyAsColumn field names to the handles that serialize and deserialize their values.
      */
-    private Map<String, DatumWriter<Object>> fieldDatumWriters = new HashMap<>();
-
+    private final Map<String, KeyAsColumnHandle> keyAsColumnHandles;
 
     /**
-     * DatumReaders for keyAsColumn Avro Record fields. The inner map maps from
-     * the keyAsColumn Record's fields to each DatumReader. The outer map maps
-     * from the Avro entity's field to the inner map.
+     * Constructor for AvroEntitySerDe instances.
+     *
+     * @param entityComposer    An entity composer that can construct Avro entities
+     * @param avroSchema        The avro schema for entities this SerDe serializes and deserializes
+     * @param specific          True if the entity is a Specific avro record. False indicates it's a generic
      */
-    private final Map<String, Map<String, DatumReader<Object>>> kacRecordDatumReaders = new HashMap<>();
+    public AvroEntitySerDe(AvroEntityComposer<E> entityComposer, AvroEntitySchema avroSchema, boolean specific) {
+        this(entityComposer, avroSchema, Collections.<Schema>emptyList(), specific);
+    }
 
     /**
-     * DatumWriters for keyAsColumn Avro Record fields. The inner map maps from
-     * the keyAsColumn Record's fields to each DatumWriter. The outer map maps
-     * from the Avro entity's field to the inner map.
+     * Constructor for AvroEntitySerDe instances that read data written with an older version of the entity schema.
+     *
+     * @see #AvroEntitySerDe(AvroEntityComposer, AvroEntitySchema, List, boolean)
      */
-    private final Map<String, Map<String, DatumWriter<Object>>> kacRecordDatumWriters = new HashMap<>();
+    public AvroEntitySerDe(AvroEntityComposer<E> entityComposer, AvroEntitySchema avroSchema, Schema writerSchema,
+                           boolean specific) {
+        this(entityComposer, avroSchema, Collections.singletonList(writerSchema), specific);
+    }
 
     /**
-     * Constructor for AvroEntitySerDe instances.
+     * Constructor for AvroEntitySerDe instances that read data written with older versions of the entity schema.
+     * <p>
+     * Values are always written with the schema of {@code avroSchema}, and the cells carry no schema version, so a
+     * row may hold cells written by any of the schemas. Every cell is therefore read with {@code avroSchema}, and
+     * only changes that keep the cells of the older schemas readable that way are accepted:
+     * <ul>
+     * <li>adding and removing fields, and the fields of keyAsColumn records; a keyAsColumn record field an older
+     * schema lacks gets its default value, and the columns of removed record fields are ignored;</li>
+     * <li>changes that leave the encoding of a field alone, like docs, defaults and properties;</li>
+     * <li>promoting an int to a long. Inside keyAsColumn values and unions both are zig-zag varints, and int
+     * columns are 4 bytes long where long columns are 8, so their old cells are told apart by their length.</li>
+     * </ul>
+     * Any other change, e.g. making a column nullable, would need the cells to say which schema wrote them.
      *
      * @param entityComposer    An entity composer that can construct Avro entities
      * @param avroSchema        The avro schema for entities this SerDe serializes and deserializes
+     * @param writerSchemas     The older avro schemas the stored data may have been written with
      * @param specific          True if the entity is a Specific avro record. False indicates it's a generic
+     * @throws IllegalArgumentException if a field of a writer schema encodes its values in a way the cells written
+     *                                  with {@code avroSchema} cannot be told apart from.
      */
-    public AvroEntitySerDe(AvroEntityComposer<E> entityComposer, AvroEntitySchema avroSchema, boolean specific) {
+    public AvroEntitySerDe(AvroEntityComposer<E> entityComposer, AvroEntitySchema avroSchema, List<Schema> writerSchemas,
+                           boolean specific) {
+        for (Schema writerSchema : writerSchemas) {
+            checkNotNull(writerSchema, "writerSchema cannot be null");
+            checkArgument(writerSchema.getType() == RECORD, "Writer schema must be a record: %s", writerSchema);
+        }
         this.entityComposer = entityComposer;
         this.specific = specific;
         this.avroSchema = avroSchema;
 
+        // Readers are shared between fields with the same schema.
+        Map<Schema, ThreadLocal<DatumReader<Object>>> datumReaders = new HashMap<>();
+        Map<String, ColumnHandle> columnHandles = new HashMap<>();
+        Map<String, KeyAsColumnHandle> keyAsColumnHandles = new HashMap<>();
+
         // For each field in entity, initialize the appropriate datum readers and writers.
         for (FieldMapping fieldMapping : avroSchema.getFieldMappings()) {
             String fieldName = fieldMapping.fieldName();
             Schema fieldSchema = avroSchema.getAvroSchema().getField(fieldName).schema();
+            List<Schema> writerFieldSchemas = new ArrayList<>();
+            for (Schema writerSchema : writerSchemas) {
+                Schema.Field writerField = writerSchema.getField(fieldName);
+                if (writerField != null) {
+                    writerFieldSchemas.add(writerField.schema());
+                }
+            }
             MappingType mappingType = fieldMapping.mappingType();
 
             if (mappingType == MappingType.COLUMN || mappingType == MappingType.COUNTER) {
-                initColumnDatumMaps(fieldName, fieldSchema);
+                boolean intCells = false;
+                for (Schema writerFieldSchema : writerFieldSchemas) {
+                    if (writerFieldSchema.getType() == INT && fieldSchema.getType() == LONG) {
+                        intCells = true;
+                    } else {
+                        checkReadable(fieldName, writerFieldSchema, fieldSchema, isColumnEncoded(fieldSchema) || isColumnEncoded(writerFieldSchema));
+                    }
+                }
+                columnHandles.put(fieldName, new ColumnHandle(fieldSchema, intCells, buildDatumReader(datumReaders, fieldSchema),
+                    buildDatumWriter(fieldSchema)));
             }
 
             if (mappingType == MappingType.KEY_AS_COLUMN) {
                 Schema.Type type = fieldSchema.getType();
                 String value = fieldMapping.mappingValue();
                 checkArgument(type == RECORD || type == MAP, "Unsupported type for keyAsColumn: %s", value);
+                for (Schema writerFieldSchema : writerFieldSchemas) {
+                    checkArgument(writerFieldSchema.getType() == type, "Writer schema of keyAsColumn field %s is not a %s", fieldName, type);
+                }
                 if (type == RECORD) {
-                    // Each field of the kac record has a different type, so we need to track each one in a different map.
-                    initKACRecordDatumMaps(fieldName, fieldSchema);
+                    keyAsColumnHandles.put(fieldName, buildRecordHandle(datumReaders, fieldName, fieldSchema, writerFieldSchemas));
                 } else if (type == MAP) {
-                    // Only one value type for a map, so just put the type in the column datum maps.
-                    initColumnDatumMaps(fieldName, fieldSchema.getValueType());
+                    // Only one value type for a map, so a single reader and writer serve every column.
+                    for (Schema writerFieldSchema : writerFieldSchemas) {
+                        checkReadable(fieldName, writerFieldSchema.getValueType(), fieldSchema.getValueType(), false);
+                    }
+                    ThreadLocal<DatumReader<Object>> datumReader = buildDatumReader(datumReaders, fieldSchema.getValueType());
+                    String stringProp = fieldSchema.getProp("avro.java.string");
+                    keyAsColumnHandles.put(fieldName, new MapKeyAsColumnHandle(datumReader, buildDatumWriter(fieldSchema.getValueType()),
+                        "String".equals(stringProp)));
                 }
 
             }
         }
+
+        this.columnHandles = ImmutableMap.copyOf(columnHandles);
+        this.keyAsColumnHandles = ImmutableMap.copyOf(keyAsColumnHandles);
+    }
+
+    /**
+     * Builds the handle of a keyAsColumn record field. Each field of the record has a different type, so each gets
+     * its own reader and writer.
+     */
+    private KeyAsColumnHandle buildRecordHandle(Map<Schema, ThreadLocal<DatumReader<Object>>> datumReaders,
+                                                String fieldName, Schema recordSchema, List<Schema> writerRecordSchemas) {
+        List<Schema.Field> fields = recordSchema.getFields();
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        ThreadLocal<DatumReader<Object>>[] readers = new ThreadLocal[fields.size()];
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        DatumWriter<Object>[] writers = new DatumWriter[fields.size()];
+        Object[] addedFieldDefaults = new Object[fields.size()];
+        boolean hasAddedFieldDefaults = false;
+        for (Schema.Field recordField : fields) {
+            readers[recordField.pos()] = buildDatumReader(datumReaders, recordField.schema());
+            writers[recordField.pos()] = buildDatumWriter(recordField.schema());
+            boolean added = false;
+            for (Schema writerRecordSchema : writerRecordSchemas) {
+                Schema.Field writerRecordField = writerRecordSchema.getField(recordField.name());
+                if (writerRecordField != null) {
+                    checkReadable(fieldName + "." + recordField.name(), writerRecordField.schema(), recordField.schema(), false);
+                } else {
+                    added = true;
+                }
+            }
+            if (added && recordField.defaultValue() != null) {
+                addedFieldDefaults[recordField.pos()] = getDataModel().getDefaultValue(recordField);
+                hasAddedFieldDefaults = true;
+            }
+        }
+        Set<String> droppedFields = new HashSet<>();
+        for (Schema writerRecordSchema : writerRecordSchemas) {
+            for (Schema.Field writerRecordField : writerRecordSchema.getFields()) {
+                if (recordSchema.getField(writerRecordField.name()) == null) {
+                    droppedFields.add(writerRecordField.name());
+                }
+            }
+        }
+        return new RecordKeyAsColumnHandle(fieldName, recordSchema, readers, writers,
+            hasAddedFieldDefaults ? addedFieldDefaults : null, droppedFields,
+            entityComposer.getKeyAsColumnRecordBuilderFactory(fieldName), getDataModel());
+    }
+
+    /**
+     * Checks that the values of a field written with a writer schema are read correctly with its reader schema.
+     *
+     * @param columnEncoded True if either schema writes the values with the ColumnEncoder.
+     */
+    private static void checkReadable(String fieldName, Schema writerSchema, Schema readerSchema, boolean columnEncoded) {
+        checkArgument(columnEncoded ? sameEncoding(writerSchema, readerSchema) : readsBinary(writerSchema, readerSchema),
+            "Values of %s written as %s cannot be told apart from the ones written as %s", fieldName, writerSchema, readerSchema);
+    }
+
+    /**
+     * @return True if Avro binary encoded values of the writer schema are the binary encoding of the same values of
+     * the reader schema.
+     */
+    private static boolean readsBinary(Schema writerSchema, Schema readerSchema) {
+        if (writerSchema.getType() == INT && readerSchema.getType() == LONG) {
+            // both are zig-zag varints
+            return true;
+        }
+        if (writerSchema.getType() == UNION && readerSchema.getType() == UNION
+            && writerSchema.getTypes().size() == readerSchema.getTypes().size()) {
+            for (int i = 0; i < writerSchema.getTypes().size(); i++) {
+                if (!readsBinary(writerSchema.getTypes().get(i), readerSchema.getTypes().get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return sameEncoding(writerSchema, readerSchema);
+    }
+
+    /**
+     * @return True if both schemas encode values the same way, which ignores e.g. the avro.java.string property
+     * of specific records.
+     */
+    private static boolean sameEncoding(Schema schema, Schema otherSchema) {
+        return SchemaNormalization.toParsingForm(schema).equals(SchemaNormalization.toParsingForm(otherSchema));
+    }
+
+    /**
+     * @return True if values of the schema are written with the ColumnEncoder, which has special handling for int,
+     * long and String types (see ColumnEncoder), rather than the Avro binary encoding.
+     */
+    private static boolean isColumnEncoded(Schema schema) {
+        Schema.Type type = schema.getType();
+        return type == INT || type == LONG || type == STRING;
     }
 
     /**
@@ -155,9 +319,7 @@ public class AvroEntitySerDe<E extends IndexedRecord> implements EntitySerDe<E>
         String fieldName = mapping.fieldName();
         MappingType mappingType = mapping.mappingType();
 
-        // validate
-        ImmutableList<MappingType> validTypes = ImmutableList.of(COLUMN, COUNTER, KEY_AS_COLUMN);
-        checkArgument(validTypes.contains(mappingType), "Invalid field mapping for field with name: %s", fieldName);
+        checkArgument(VALID_MAPPING_TYPES.contains(mappingType), "Invalid field mapping for field with name: %s", fieldName);
 
         if (mappingType == MappingType.COLUMN || mappingType == MappingType.COUNTER) {
             return deserializeColumn(mapping, result);
@@ -183,7 +345,7 @@ public class AvroEntitySerDe<E extends IndexedRecord> implements EntitySerDe<E>
         // column mapping, so simply serialize the value and add the bytes to the put.
         checkArgument(mapping.mappingType() == COLUMN || mapping.mappingType() == COUNTER);
 
-        byte[] bytes = serializeColumnValueToBytes(mapping.fieldName(), fieldValue);
+        byte[] bytes = columnHandle(mapping.fieldName()).serialize(fieldValue);
         put.addColumn(mapping.family(), mapping.qualifier(), bytes);
     }
 
@@ -195,18 +357,8 @@ public class AvroEntitySerDe<E extends IndexedRecord> implements EntitySerDe<E>
      * @param put        The put to update with the serialized bytes.
      */
     private void serializeKeyAsColumn(FieldMapping mapping, Object fieldValue, Put put) {
-        // keyAsColumn mapping, so extract each value from the keyAsColumn field
-        // using the entityComposer, serialize them, and them to the put.
         checkArgument(mapping.mappingType() == KEY_AS_COLUMN);
-        String fieldName = mapping.fieldName();
-        Map<CharSequence, Object> keyAsColumnValues = entityComposer.extractKeyAsColumnValues(fieldName, fieldValue);
-        for (Map.Entry<CharSequence, Object> entry : keyAsColumnValues.entrySet()) {
-            CharSequence qualifier = entry.getKey();
-            byte[] qualifierBytes = serializeKeyAsColumnKeyToBytes(qualifier);
-            // serialize the value, and add it to the put.
-            byte[] bytes = serializeKeyAsColumnValueToBytes(fieldName, qualifier, entry.getValue());
-            put.addColumn(mapping.family(), qualifierBytes, bytes);
-        }
+        keyAsColumnHandle(mapping.fieldName()).serialize(fieldValue, mapping.family(), put);
     }
 
     /**
@@ -220,7 +372,7 @@ public class AvroEntitySerDe<E extends IndexedRecord> implements EntitySerDe<E>
         MappingType mappingType = mapping.mappingType();
         checkArgument(mappingType == MappingType.COLUMN || mappingType == MappingType.COUNTER);
         byte[] bytes = result.getValue(mapping.family(), mapping.qualifier());
-        return bytes == null ? null : deserializeColumnValueFromBytes(mapping.fieldName(), bytes);
+        return bytes == null ? null : columnHandle(mapping.fieldName()).deserialize(bytes);
     }
 
     /**
@@ -232,41 +384,20 @@ public class AvroEntitySerDe<E extends IndexedRecord> implements EntitySerDe<E>
      */
     private Object deserializeKeyAsColumn(FieldMapping mapping, Result result) {
         checkArgument(mapping.mappingType() == KEY_AS_COLUMN);
-        // Construct a map of keyAsColumn field values. From this we'll be able
-        // to use the entityComposer to construct the entity field value.
-        Map<CharSequence, Object> fieldValueAsMap = Maps.newHashMap();
-        Map<byte[], byte[]> familyMap = result.getFamilyMap(mapping.family());
-        for (Map.Entry<byte[], byte[]> entry : familyMap.entrySet()) {
-            byte[] qualifier = entry.getKey();
-            byte[] columnBytes = entry.getValue();
-            CharSequence keyAsColumnKey = deserializeKeyAsColumnKeyFromBytes(mapping.fieldName(), qualifier);
-            Object keyAsColumnValue = deserializeKeyAsColumnValueFromBytes(mapping.fieldName(), qualifier, columnBytes);
-            fieldValueAsMap.put(keyAsColumnKey, keyAsColumnValue);
-        }
-        // Now build the entity field from the fieldValueAsMap.
-        return entityComposer.buildKeyAsColumnField(mapping.fieldName(), fieldValueAsMap);
-    }
-
-
-    private void initColumnDatumMaps(String fieldName, Schema fieldSchema) {
-        fieldDatumReaders.put(fieldName, buildDatumReader(fieldSchema));
-        fieldDatumWriters.put(fieldName, buildDatumWriter(fieldSchema));
+        return keyAsColumnHandle(mapping.fieldName()).deserialize(result, mapping.family());
     }
 
-
-    private void initKACRecordDatumMaps(String fieldName, Schema fieldSchema) {
-        Map<String, DatumReader<Object>> recordFieldReaderMap = new HashMap<>();
-        Map<String, DatumWriter<Object>> recordFieldWriterMap = new HashMap<>();
-        kacRecordDatumReaders.put(fieldName, recordFieldReaderMap);
-        kacRecordDatumWriters.put(fieldName, recordFieldWriterMap);
-        for (Schema.Field recordField : fieldSchema.getFields()) {
-            recordFieldReaderMap.put(recordField.name(), buildDatumReader(recordField.schema()));
-            recordFieldWriterMap.put(recordField.name(), buildDatumWriter(recordField.schema()));
-        }
+    /**
+     * Returns the per-thread DatumReaders of a schema, reusing the ones already built for the same schema.
+     */
+    private ThreadLocal<DatumReader<Object>> buildDatumReader(Map<Schema, ThreadLocal<DatumReader<Object>>> datumReaders,
+                                                               Schema schema) {
+        return datumReaders.computeIfAbsent(schema, readerSchema -> ThreadLocal.withInitial(() ->
+            specific ? new SpecificDatumReader<>(readerSchema) : new GenericDatumReader<>(readerSchema)));
     }
 
-    private DatumReader<Object> buildDatumReader(Schema schema) {
-        return this.specific ? new SpecificDatumReader<>(schema) : new GenericDatumReader<>(schema);
+    private GenericData getDataModel() {
+        return specific ? SpecificData.get() : GenericData.get();
     }
 
     private DatumWriter<Object> buildDatumWriter(Schema schema) {
@@ -274,139 +405,428 @@ public class AvroEntitySerDe<E extends IndexedRecord> implements EntitySerDe<E>
     }
 
     public byte[] serializeColumnValueToBytes(String fieldName, Object columnValue) {
-        Schema.Field field = avroSchema.getAvroSchema().getField(fieldName);
-        DatumWriter<Object> datumWriter = fieldDatumWriters.get(fieldName);
-
-        checkNotNull(field, "Invalid field name %s for schema %s", fieldName, avroSchema.toString());
-        checkNotNull(datumWriter, "No datum writer for field name: %s", fieldName);
-
-        ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
-        Encoder encoder = getColumnEncoder(field.schema(), byteOut);
-        AvroUtils.writeAvroEntity(columnValue, encoder, fieldDatumWriters.get(fieldName));
-        return byteOut.toByteArray();
+        return columnHandle(fieldName).serialize(columnValue);
     }
 
     public byte[] serializeKeyAsColumnValueToBytes(String fieldName, CharSequence columnKey, Object columnValue) {
-        Schema.Field field = avroSchema.getAvroSchema().getField(fieldName);
-        checkArgument(field != null, "Invalid field name %s for schema %s", fieldName, avroSchema.toString());
-        Schema.Type schemaType = field.schema().getType();
-        switch (schemaType) {
-            case MAP: {
-                DatumWriter<Object> datumWriter = fieldDatumWriters.get(fieldName);
-                checkArgument(datumWriter != null, "No datum writer for field name: %s", fieldName);
-                return AvroUtils.writeAvroEntity(columnValue, datumWriter);
-            }
-            case RECORD: {
-                checkArgument(kacRecordDatumWriters.containsKey(fieldName), "Invalid field name %s for schema %s", fieldName, avroSchema.toString());
-                checkArgument(kacRecordDatumWriters.get(fieldName).containsKey(columnKey.toString()), "Invalid key in record: %s.%s", fieldName, columnKey);
-                DatumWriter<Object> datumWriter = kacRecordDatumWriters.get(fieldName).get(columnKey.toString());
-                return AvroUtils.writeAvroEntity(columnValue, datumWriter);
-            }
-            default:
-                throw new IllegalArgumentException("Unsupported type for keyAsColumn: " + schemaType);
-        }
+        return keyAsColumnHandle(fieldName).serializeValue(columnKey, columnValue);
     }
 
     public byte[] serializeKeyAsColumnKeyToBytes(CharSequence columnKey) {
-        if (columnKey.getClass().isAssignableFrom(String.class)) {
-            return ((String) columnKey).getBytes();
-        } else if (columnKey.getClass().isAssignableFrom(Utf8.class)) {
-            return ((Utf8) columnKey).getBytes();
-        } else {
-            return columnKey.toString().getBytes();
+        if (columnKey instanceof Utf8) {
+            Utf8 utf8 = (Utf8) columnKey;
+            return Arrays.copyOf(utf8.getBytes(), utf8.getByteLength());
         }
+        return columnKey.toString().getBytes(StandardCharsets.UTF_8);
     }
 
     public Object deserializeColumnValueFromBytes(String fieldName, byte[] columnBytes) {
-        Schema.Field field = avroSchema.getAvroSchema().getField(fieldName);
-        DatumReader<Object> datumReader = fieldDatumReaders.get(fieldName);
-
-        checkNotNull(field, "Invalid field name %s for schema %s", fieldName, avroSchema.toString());
-        checkNotNull(datumReader, "No datum reader for field name: %s", fieldName);
+        return columnHandle(fieldName).deserialize(columnBytes);
+    }
 
-        ByteArrayInputStream byteIn = new ByteArrayInputStream(columnBytes);
-        Decoder decoder = getColumnDecoder(field.schema(), byteIn);
+    /**
+     * Returns the handle that serializes and deserializes the values of a column or counter field. Callers that
+     * map many rows can look it up once and skip the per-call field name lookups.
+     *
+     * @param fieldName The name of a column or counter mapped field
+     * @return The column handle
+     */
+    ColumnHandle columnHandle(String fieldName) {
+        ColumnHandle columnHandle = columnHandles.get(fieldName);
+        checkArgument(columnHandle != null, "No column mapping for field name: %s", fieldName);
+        return columnHandle;
+    }
 
-        return AvroUtils.readAvroEntity(decoder, datumReader);
+    /**
+     * Returns the handle that serializes and deserializes the values of a keyAsColumn field.
+     *
+     * @param fieldName The name of a keyAsColumn mapped field
+     * @return The keyAsColumn handle
+     */
+    KeyAsColumnHandle keyAsColumnHandle(String fieldName) {
+        KeyAsColumnHandle keyAsColumnHandle = keyAsColumnHandles.get(fieldName);
+        checkArgument(keyAsColumnHandle != null, "No keyAsColumn mapping for field name %s in schema %s", fieldName, avroSchema);
+        return keyAsColumnHandle;
     }
 
     public Object deserializeKeyAsColumnValueFromBytes(String fieldName, byte[] columnKeyBytes, byte[] columnValueBytes) {
-        Schema.Field field = avroSchema.getAvroSchema().getField(fieldName);
-        Schema.Type schemaType = field.schema().getType();
+        return keyAsColumnHandle(fieldName).deserializeValue(columnKeyBytes, columnValueBytes);
+    }
+
+    public CharSequence deserializeKeyAsColumnKeyFromBytes(String fieldName, byte[] columnKeyBytes) {
+        return keyAsColumnHandle(fieldName).deserializeKey(columnKeyBytes, 0, columnKeyBytes.length);
+    }
 
-        checkNotNull(field, "Invalid field name %s for schema %s", fieldName, avroSchema.toString());
-        checkArgument(schemaType == MAP || schemaType == RECORD, "Unsupported type for keyAsColumn: %s", schemaType);
+    /**
+     * Serializes and deserializes the values of one column or counter field. The codec, DatumReader and
+     * DatumWriter of the field are resolved when the serde is built, so using a handle involves no lookups.
+     */
+    static final class ColumnHandle {
+        /**
+         * Converts the value straight to and from the column bytes. Only fields of int, long and string types
+         * (or nullable unions of those) have one.
+         */
+        private final PrimitiveColumnCodec codec;
+        private final ThreadLocal<DatumReader<Object>> datumReader;
+        private final DatumWriter<Object> datumWriter;
+
+        /**
+         * True if values are written with the ColumnEncoder, which has special handling for int, long and
+         * String types (see ColumnEncoder), rather than the Avro binary encoding.
+         */
+        private final boolean columnEncoded;
+
+        /**
+         * True if the field is a long column that an older schema wrote as an int, so 4 byte cells hold ints.
+         */
+        private final boolean intCells;
+
+        ColumnHandle(Schema fieldSchema, boolean intCells, ThreadLocal<DatumReader<Object>> datumReader,
+                     DatumWriter<Object> datumWriter) {
+            this.codec = PrimitiveColumnCodec.forSchema(fieldSchema);
+            this.intCells = intCells;
+            this.datumReader = datumReader;
+            this.datumWriter = datumWriter;
+            this.columnEncoded = isColumnEncoded(fieldSchema);
+        }
 
-        switch (schemaType) {
-            case MAP: {
-                DatumReader<Object> datumReader = fieldDatumReaders.get(fieldName);
-                checkNotNull(datumReader, "No datum reader for field name: %s", fieldName);
+        /**
+         * @return True if values are read with the codec rather than a DatumReader.
+         */
+        boolean readsWithCodec() {
+            return codec != null;
+        }
 
-                return AvroUtils.readAvroEntity(columnValueBytes, datumReader);
+        byte[] serialize(Object value) {
+            if (codec != null) {
+                return codec.encode(value);
             }
-            case RECORD: {
-                String columnKey = new String(columnKeyBytes);
+            CodecScratch scratch = CodecScratch.get();
+            Encoder encoder = columnEncoded ? scratch.columnEncoder() : scratch.binaryEncoder();
+            AvroUtils.writeAvroEntity(value, encoder, datumWriter);
+            return scratch.toByteArray();
+        }
 
-                checkArgument(kacRecordDatumReaders.containsKey(fieldName),
-                    "Invalid field name %s for schema %s", fieldName, avroSchema.toString());
-                checkArgument(kacRecordDatumReaders.get(fieldName).containsKey(columnKey),
-                    "Invalid key in record: %s.%s", fieldName, columnKey);
+        /**
+         * Deserializes a value from a column value array, which the value may share.
+         */
+        Object deserialize(byte[] bytes) {
+            if (codec != null && !intCells) {
+                return codec.decode(bytes);
+            }
+            return deserialize(bytes, 0, bytes.length);
+        }
 
-                DatumReader<Object> datumReader = kacRecordDatumReaders.get(fieldName).get(columnKey);
-                return AvroUtils.readAvroEntity(columnValueBytes, datumReader);
+        /**
+         * Deserializes a value from a slice of an array, which the value never shares.
+         */
+        Object deserialize(byte[] bytes, int offset, int length) {
+            if (intCells && length == Bytes.SIZEOF_INT) {
+                return (long) Bytes.toInt(bytes, offset);
+            }
+            if (codec != null) {
+                return codec.decode(bytes, offset, length);
             }
+            CodecScratch scratch = CodecScratch.get();
+            Decoder decoder = columnEncoded ? scratch.columnDecoder(bytes, offset, length) : scratch.binaryDecoder(bytes, offset, length);
+            return AvroUtils.readAvroEntity(decoder, datumReader.get());
         }
-        return null;
     }
 
-    public CharSequence deserializeKeyAsColumnKeyFromBytes(String fieldName, byte[] columnKeyBytes) {
-        Schema.Field field = avroSchema.getAvroSchema().getField(fieldName);
-        Schema.Type schemaType = field.schema().getType();
-
-        Preconditions.checkNotNull(field, "Invalid field name %s for schema %s", fieldName, avroSchema.toString());
-        checkArgument(schemaType == MAP || schemaType == RECORD, "Unsupported type for keyAsColumn: %s", schemaType);
-        switch (schemaType) {
-            case RECORD:
-                return new String(columnKeyBytes);
-            case MAP:
-                String stringProp = field.schema().getProp("avro.java.string");
-                return (stringProp != null && stringProp.equals("String")) ? new String(columnKeyBytes) : new Utf8(columnKeyBytes);
+    /**
+     * Serializes and deserializes the values of one keyAsColumn field, each key of which is stored in a column of
+     * the field's family.
+     */
+    abstract static class KeyAsColumnHandle {
+
+        /**
+         * Adds a column to the put for each key of a field value.
+         */
+        abstract void serialize(Object fieldValue, byte[] family, Put put);
+
+        /**
+         * Builds a field value from the columns of the field's family.
+         */
+        Object deserialize(Result result, byte[] family) {
+            Cell[] cells = result.rawCells();
+            if (cells == null) {
+                return deserialize(new Cell[0], 0, 0);
+            }
+            return deserialize(cells, familyBound(cells, family, false), familyBound(cells, family, true));
+        }
+
+        /**
+         * Builds a field value from a range of sorted cells, all of which are in the field's family. Only the
+         * first (latest) version of each column is read.
+         *
+         * @param cells The cells of a row.
+         * @param from  The index of the first cell of the family.
+         * @param to    The index after the last cell of the family.
+         */
+        abstract Object deserialize(Cell[] cells, int from, int to);
+
+        abstract byte[] serializeValue(CharSequence key, Object value);
+
+        abstract CharSequence deserializeKey(byte[] bytes, int offset, int length);
+
+        abstract Object deserializeValue(byte[] qualifier, byte[] value);
+
+        /**
+         * Binary searches the sorted cells of a row for the start or the end of a family.
+         *
+         * @param after False to find the index of the first cell of the family, true to find the index after its
+         *              last cell.
+         */
+        static int familyBound(Cell[] cells, byte[] family, boolean after) {
+            int low = 0;
+            int high = cells.length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                Cell cell = cells[middle];
+                int cmp = Bytes.compareTo(cell.getFamilyArray(), cell.getFamilyOffset(), cell.getFamilyLength(), family, 0, family.length);
+                if (cmp < 0 || (after && cmp == 0)) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * @return True if the cell at index i is an older version of the column of the cell before it.
+         */
+        static boolean isOlderVersion(Cell[] cells, int i, int from) {
+            return i > from && CellUtil.matchingQualifier(cells[i], cells[i - 1]);
+        }
+
+        static byte[] writeValue(Object value, DatumWriter<Object> datumWriter) {
+            CodecScratch scratch = CodecScratch.get();
+            AvroUtils.writeAvroEntity(value, scratch.binaryEncoder(), datumWriter);
+            return scratch.toByteArray();
+        }
+
+        static Object readValue(byte[] bytes, int offset, int length, ThreadLocal<DatumReader<Object>> datumReader) {
+            return AvroUtils.readAvroEntity(CodecScratch.get().binaryDecoder(bytes, offset, length), datumReader.get());
         }
-        return null;
     }
 
     /**
-     * Returns an Avro Encoder. The implementation it chooses will depend on the schema of the field.
-     *
-     * @param out Output stream to encode bytes to
-     * @return The avro encoder
+     * The handle of a keyAsColumn record field. Its qualifiers are the UTF-8 encoded names of the record's fields,
+     * which are fixed by the schema, so they are encoded once and looked up by binary search over the sorted
+     * qualifiers rather than decoded for every cell.
      */
-    private Encoder getColumnEncoder(Schema fieldAvroSchema, OutputStream out) {
-        // Use a special Avro encoder that has special handling for int, long, and String types.
-        // See ColumnEncoder for more information.
-        Schema.Type type = fieldAvroSchema.getType();
-        if (type == INT || type == LONG || type == STRING) {
-            return new ColumnEncoder(out);
-        } else {
-            return EncoderFactory.get().binaryEncoder(out, null);
+    static final class RecordKeyAsColumnHandle extends KeyAsColumnHandle {
+        private final String fieldName;
+        private final Schema recordSchema;
+
+        /**
+         * The qualifier of each field of the record, by field position.
+         */
+        private final byte[][] qualifiers;
+
+        /**
+         * The qualifiers in HBase order, and the positions of their fields.
+         */
+        private final byte[][] sortedQualifiers;
+        private final int[] sortedPositions;
+
+        private final ThreadLocal<DatumReader<Object>>[] datumReaders;
+        private final DatumWriter<Object>[] datumWriters;
+
+        /**
+         * The defaults of the fields the writer schema lacks, by field position, or null if it lacks none.
+         */
+        private final Object[] addedFieldDefaults;
+        private final Set<String> droppedFields;
+        private final AvroRecordBuilderFactory<?> recordBuilderFactory;
+        private final GenericData dataModel;
+
+        RecordKeyAsColumnHandle(String fieldName, Schema recordSchema, ThreadLocal<DatumReader<Object>>[] datumReaders,
+                                DatumWriter<Object>[] datumWriters, Object[] addedFieldDefaults, Set<String> droppedFields,
+                                AvroRecordBuilderFactory<?> recordBuilderFactory, GenericData dataModel) {
+            this.fieldName = fieldName;
+            this.recordSchema = recordSchema;
+            this.datumReaders = datumReaders;
+            this.datumWriters = datumWriters;
+            this.addedFieldDefaults = addedFieldDefaults;
+            this.droppedFields = ImmutableSet.copyOf(droppedFields);
+            this.recordBuilderFactory = recordBuilderFactory;
+            this.dataModel = dataModel;
+
+            List<Schema.Field> fields = recordSchema.getFields();
+            this.qualifiers = new byte[fields.size()][];
+            Integer[] order = new Integer[fields.size()];
+            for (Schema.Field field : fields) {
+                qualifiers[field.pos()] = field.name().getBytes(StandardCharsets.UTF_8);
+                order[field.pos()] = field.pos();
+            }
+            Arrays.sort(order, (a, b) -> Bytes.compareTo(qualifiers[a], qualifiers[b]));
+            this.sortedQualifiers = new byte[order.length][];
+            this.sortedPositions = new int[order.length];
+            for (int i = 0; i < order.length; i++) {
+                sortedQualifiers[i] = qualifiers[order[i]];
+                sortedPositions[i] = order[i];
+            }
         }
-    }
 
+        /**
+         * Returns the position of the record field a qualifier belongs to.
+         *
+         * @return The position, or -1 if no field of the record has that qualifier.
+         */
+        int fieldPosition(byte[] bytes, int offset, int length) {
+            int low = 0;
+            int high = sortedQualifiers.length - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                byte[] qualifier = sortedQualifiers[middle];
+                int cmp = Bytes.compareTo(qualifier, 0, qualifier.length, bytes, offset, length);
+                if (cmp < 0) {
+                    low = middle + 1;
+                } else if (cmp > 0) {
+                    high = middle - 1;
+                } else {
+                    return sortedPositions[middle];
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        void serialize(Object fieldValue, byte[] family, Put put) {
+            IndexedRecord record = (IndexedRecord) fieldValue;
+            for (int pos = 0; pos < qualifiers.length; pos++) {
+                put.addColumn(family, qualifiers[pos], writeValue(record.get(pos), datumWriters[pos]));
+            }
+        }
+
+        @Override
+        Object deserialize(Cell[] cells, int from, int to) {
+            AvroRecordBuilder<?> builder = recordBuilderFactory.getBuilder();
+            boolean[] read = addedFieldDefaults != null ? new boolean[qualifiers.length] : null;
+            for (int i = from; i < to; i++) {
+                if (isOlderVersion(cells, i, from)) {
+                    continue;
+                }
+                Cell cell = cells[i];
+                int pos = fieldPosition(cell.getQualifierArray(), cell.getQualifierOffset(), cell.getQualifierLength());
+                if (pos < 0) {
+                    checkDropped(cell.getQualifierArray(), cell.getQualifierOffset(), cell.getQualifierLength());
+                    continue;
+                }
+                builder.put(pos, readValue(cell.getValueArray(), cell.getValueOffset(), cell.getValueLength(), datumReaders[pos]));
+                if (read != null) {
+                    read[pos] = true;
+                }
+            }
+            if (read != null) {
+                for (int pos = 0; pos < read.length; pos++) {
+                    if (!read[pos] && addedFieldDefaults[pos] != null) {
+                        // copied since default values are shared and may be mutable
+                        builder.put(pos, dataModel.deepCopy(recordSchema.getFields().get(pos).schema(), addedFieldDefaults[pos]));
+                    }
+                }
+            }
+            return builder.build();
+        }
+
+        /**
+         * Checks that a qualifier that matches no field of the record belongs to a field the reader schema dropped.
+         */
+        private void checkDropped(byte[] bytes, int offset, int length) {
+            String key = new String(bytes, offset, length, StandardCharsets.UTF_8);
+            checkArgument(droppedFields.contains(key), "Invalid key in record: %s.%s", fieldName, key);
+        }
+
+        @Override
+        byte[] serializeValue(CharSequence key, Object value) {
+            Schema.Field field = recordSchema.getField(key.toString());
+            checkArgument(field != null, "Invalid key in record: %s.%s", fieldName, key);
+            return writeValue(value, datumWriters[field.pos()]);
+        }
+
+        @Override
+        CharSequence deserializeKey(byte[] bytes, int offset, int length) {
+            int pos = fieldPosition(bytes, offset, length);
+            return pos >= 0 ? recordSchema.getFields().get(pos).name() : new String(bytes, offset, length, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        Object deserializeValue(byte[] qualifier, byte[] value) {
+            int pos = fieldPosition(qualifier, 0, qualifier.length);
+            checkArgument(pos >= 0, "Invalid key in record: %s.%s", fieldName, Bytes.toString(qualifier));
+            return readValue(value, 0, value.length, datumReaders[pos]);
+        }
+    }
 
     /**
-     * Returns an Avro Decoder. The implementation it chooses will depend on the schema of the field.
-     *
-     * @param in InputStream to decode bytes from
-     * @return The avro decoder.
+     * The handle of a keyAsColumn map field. The keys of a map are open ended, so they are interned in a bounded
+     * cache that holds the keys found in most rows.
      */
-    private Decoder getColumnDecoder(Schema writtenFieldAvroSchema, InputStream in) {
-        // Use a special Avro decoder that has special handling for int, long, and String types.
-        // See ColumnDecoder for more information.
-        Schema.Type type = writtenFieldAvroSchema.getType();
-        if (type == INT || type == LONG || type == STRING) {
-            return new ColumnDecoder(in);
-        } else {
-            return DecoderFactory.get().binaryDecoder(in, null);
+    static final class MapKeyAsColumnHandle extends KeyAsColumnHandle {
+        private final ThreadLocal<DatumReader<Object>> datumReader;
+        private final DatumWriter<Object> datumWriter;
+
+        /**
+         * True if the map keys are Strings rather than Utf8s. Only immutable String keys are interned.
+         */
+        private final boolean stringKeys;
+        private final ColumnKeyCache keyCache = new ColumnKeyCache();
+
+        MapKeyAsColumnHandle(ThreadLocal<DatumReader<Object>> datumReader, DatumWriter<Object> datumWriter, boolean stringKeys) {
+            this.datumReader = datumReader;
+            this.datumWriter = datumWriter;
+            this.stringKeys = stringKeys;
+        }
+
+        @Override
+        void serialize(Object fieldValue, byte[] family, Put put) {
+            @SuppressWarnings("unchecked")
+            Map<CharSequence, Object> map = (Map<CharSequence, Object>) fieldValue;
+            for (Map.Entry<CharSequence, Object> entry : map.entrySet()) {
+                put.addColumn(family, serializeKey(entry.getKey()), writeValue(entry.getValue(), datumWriter));
+            }
+        }
+
+        /**
+         * Encodes a key as a qualifier. The array may be shared, which is safe since puts copy their qualifiers.
+         */
+        private byte[] serializeKey(CharSequence key) {
+            if (key instanceof Utf8) {
+                Utf8 utf8 = (Utf8) key;
+                return Arrays.copyOf(utf8.getBytes(), utf8.getByteLength());
+            }
+            return keyCache.encode(key.toString());
+        }
+
+        @Override
+        Object deserialize(Cell[] cells, int from, int to) {
+            Map<CharSequence, Object> map = Maps.newHashMapWithExpectedSize(to - from);
+            for (int i = from; i < to; i++) {
+                if (isOlderVersion(cells, i, from)) {
+                    continue;
+                }
+                Cell cell = cells[i];
+                CharSequence key = deserializeKey(cell.getQualifierArray(), cell.getQualifierOffset(), cell.getQualifierLength());
+                map.put(key, readValue(cell.getValueArray(), cell.getValueOffset(), cell.getValueLength(), datumReader));
+            }
+            return map;
+        }
+
+        @Override
+        byte[] serializeValue(CharSequence key, Object value) {
+            return writeValue(value, datumWriter);
+        }
+
+        @Override
+        CharSequence deserializeKey(byte[] bytes, int offset, int length) {
+            return stringKeys ? keyCache.decode(bytes, offset, length) : new Utf8(Arrays.copyOfRange(bytes, offset, offset + length));
+        }
+
+        @Override
+        Object deserializeValue(byte[] qualifier, byte[] value) {
+            return readValue(value, 0, value.length, datumReader);
         }
     }
 }
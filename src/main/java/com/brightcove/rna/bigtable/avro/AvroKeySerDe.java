@@ -1,47 +1,500 @@
 package com.brightcove.rna.bigtable.avro;
 
+import com.brightcove.rna.bigtable.KeyRange;
 import com.brightcove.rna.bigtable.KeySerDe;
 import com.brightcove.rna.bigtable.avro.io.MemcmpDecoder;
 import com.brightcove.rna.bigtable.avro.io.MemcmpEncoder;
 import org.apache.avro.Schema;
-import org.apache.avro.generic.*;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.IndexedRecord;
 import org.apache.avro.io.DatumReader;
 import org.apache.avro.io.DatumWriter;
-import org.apache.avro.io.Decoder;
-import org.apache.avro.io.Encoder;
+import org.apache.avro.util.Utf8;
+import org.apache.commons.lang.SerializationException;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
 
+import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A KeySerDe that encodes the key fields of an entity with the memcmp encoding.
+ * <p>
+ * The key schema is compiled once into one codec per key field, and the
+ * positions of the key fields are resolved once per entity schema and kept for
+ * the last few schemas seen, so serializing and deserializing a key does not
+ * walk the schema or go through a DatumWriter/DatumReader for primitive key
+ * fields.
+ * <p>
+ * Instances are thread-safe: the codecs are immutable and the encoders, decoders
+ * and DatumReaders they use are per-thread.
+ */
 public class AvroKeySerDe implements KeySerDe {
+
+    /**
+     * The schema property that tells Avro to represent a string as java.lang.String instead of Utf8.
+     */
+    private static final String STRING_PROP = "avro.java.string";
+
+    /**
+     * Buffer-backed encoders, one per thread, so that serializing a key only allocates the returned byte array.
+     */
+    private static final ThreadLocal<MemcmpEncoder> ENCODER = ThreadLocal.withInitial(MemcmpEncoder::new);
+
+    /**
+     * Decoders, one per thread, that are pointed directly at the key bytes being deserialized.
+     */
+    private static final ThreadLocal<MemcmpDecoder> DECODER = ThreadLocal.withInitial(() -> new MemcmpDecoder(new byte[0]));
+
     private final Schema schema;
+    private final KeyFieldCodec[] fieldCodecs;
+
+    /**
+     * The number of entity schemas whose key field positions are kept.
+     */
+    private static final int MAX_ENTITY_SCHEMAS = 4;
+
+    /**
+     * The positions of the key fields in the schemas of the last entities that were serialized, most recent first.
+     * The array is replaced, never modified.
+     */
+    private volatile EntityPositions[] entityPositions;
 
     public AvroKeySerDe(Schema schema) {
         this.schema = schema;
+        List<Schema.Field> fields = schema.getFields();
+        this.fieldCodecs = new KeyFieldCodec[fields.size()];
+        for (Schema.Field field : fields) {
+            fieldCodecs[field.pos()] = codecFor(field.schema());
+        }
+        this.entityPositions = new EntityPositions[]{new EntityPositions(schema, schema)};
     }
 
+    /**
+     * Construct a key serde that has the key field positions of the entity schema resolved up front.
+     *
+     * @param schema       The key schema.
+     * @param entitySchema The schema of the entities the keys will be serialized from.
+     */
+    public AvroKeySerDe(Schema schema, Schema entitySchema) {
+        this(schema);
+        // key records, e.g. deserialized ones, are serialized as well, so the key schema is kept too
+        this.entityPositions = new EntityPositions[]{new EntityPositions(schema, entitySchema), entityPositions[0]};
+    }
 
     @Override
     public byte[] serialize(IndexedRecord entity) {
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        Encoder encoder = new MemcmpEncoder(outputStream);
-        Schema schemaToUse = schema;
-        DatumWriter<GenericRecord> datumWriter = new GenericDatumWriter<>(schema);
-        GenericRecord record = new GenericData.Record(schemaToUse);
-        for (Schema.Field field : schema.getFields()) {
-            int pos = entity.getSchema().getField(field.name()).pos();
-            record.put(field.pos(), entity.get(pos));
+        int[] positions = positionsFor(entity.getSchema());
+        MemcmpEncoder encoder = ENCODER.get();
+        encoder.reset();
+        try {
+            for (int i = 0; i < fieldCodecs.length; i++) {
+                fieldCodecs[i].encode(entity.get(positions[i]), encoder);
+            }
+        } catch (IOException e) {
+            throw new SerializationException("Could not serialize Avro key", e);
         }
-        AvroUtils.writeAvroEntity(record, encoder, datumWriter);
-        return outputStream.toByteArray();
+        return encoder.toByteArray();
     }
 
     @Override
     public IndexedRecord deserialize(byte[] keyBytes) {
-        ByteArrayInputStream inputStream = new ByteArrayInputStream(keyBytes);
-        Decoder decoder = new MemcmpDecoder(inputStream);
+        MemcmpDecoder decoder = DECODER.get().configure(keyBytes, 0, keyBytes.length);
+        GenericData.Record record = new GenericData.Record(schema);
+        try {
+            for (int i = 0; i < fieldCodecs.length; i++) {
+                record.put(i, fieldCodecs[i].decode(decoder));
+            }
+        } catch (IOException e) {
+            throw new SerializationException("Could not deserialize Avro key", e);
+        }
+        return record;
+    }
+
+    /**
+     * Decodes only the first key fields of a row key. The remaining bytes are not looked at, so this is cheaper
+     * than {@link #deserialize(byte[])} when only the leading fields are needed, e.g. to group rows by tenant.
+     *
+     * @param keyBytes   The row key.
+     * @param fieldCount The number of leading key fields to decode.
+     * @return The values of the first fieldCount key fields, in key order.
+     */
+    public Object[] deserializePrefix(byte[] keyBytes, int fieldCount) {
+        checkArgument(fieldCount >= 0 && fieldCount <= fieldCodecs.length,
+            "Cannot decode %s fields of a key with %s fields", fieldCount, fieldCodecs.length);
+        MemcmpDecoder decoder = DECODER.get().configure(keyBytes, 0, keyBytes.length);
+        Object[] values = new Object[fieldCount];
+        try {
+            for (int i = 0; i < fieldCount; i++) {
+                values[i] = fieldCodecs[i].decode(decoder);
+            }
+        } catch (IOException e) {
+            throw new SerializationException("Could not deserialize Avro key", e);
+        }
+        return values;
+    }
+
+    /**
+     * Decodes a single key field of a row key, skipping over the fields before it without materializing them.
+     *
+     * @param keyBytes The row key.
+     * @param index    The index of the field in the key.
+     * @return The value of the field.
+     * @throws IllegalArgumentException if the key has no field at the index.
+     */
+    public Object deserializeField(byte[] keyBytes, int index) {
+        try {
+            MemcmpDecoder decoder = decoderAt(keyBytes, index);
+            return fieldCodecs[index].decode(decoder);
+        } catch (IOException e) {
+            throw new SerializationException("Could not deserialize Avro key", e);
+        }
+    }
+
+    /**
+     * Decodes a single int key field of a row key without boxing it. See {@link #deserializeField(byte[], int)}.
+     *
+     * @param keyBytes The row key.
+     * @param index    The index of an int field in the key.
+     * @return The value of the field.
+     */
+    public int deserializeIntField(byte[] keyBytes, int index) {
+        checkFieldType(index, Schema.Type.INT);
+        try {
+            return decoderAt(keyBytes, index).readInt();
+        } catch (IOException e) {
+            throw new SerializationException("Could not deserialize Avro key", e);
+        }
+    }
+
+    /**
+     * Decodes a single long key field of a row key without boxing it. See {@link #deserializeField(byte[], int)}.
+     *
+     * @param keyBytes The row key.
+     * @param index    The index of a long field in the key.
+     * @return The value of the field.
+     */
+    public long deserializeLongField(byte[] keyBytes, int index) {
+        checkFieldType(index, Schema.Type.LONG);
+        try {
+            return decoderAt(keyBytes, index).readLong();
+        } catch (IOException e) {
+            throw new SerializationException("Could not deserialize Avro key", e);
+        }
+    }
+
+    private void checkFieldType(int index, Schema.Type type) {
+        checkArgument(index >= 0 && index < fieldCodecs.length, "No key field at index %s", index);
+        Schema.Type fieldType = schema.getFields().get(index).schema().getType();
+        checkArgument(fieldType == type, "Key field %s is of type %s, not %s", index, fieldType, type);
+    }
+
+    /**
+     * Returns this thread's decoder positioned at the start of the given key field.
+     */
+    private MemcmpDecoder decoderAt(byte[] keyBytes, int index) throws IOException {
+        checkArgument(index >= 0 && index < fieldCodecs.length, "No key field at index %s", index);
+        MemcmpDecoder decoder = DECODER.get().configure(keyBytes, 0, keyBytes.length);
+        for (int i = 0; i < index; i++) {
+            fieldCodecs[i].skip(decoder);
+        }
+        return decoder;
+    }
+
+    /**
+     * Returns the range of row keys whose leading key fields equal the given values. Since the memcmp encoding
+     * of each field is order preserving and never a prefix of the encoding of another value, these row keys are
+     * exactly the ones that start with the encoded values.
+     *
+     * @param prefixValues The values of the first key fields, in key order. Empty selects every key.
+     * @return The range of row keys.
+     */
+    public KeyRange prefixRange(Object... prefixValues) {
+        byte[] prefix = encodePrefix(Arrays.asList(prefixValues), null);
+        return new KeyRange(prefix, KeyRange.prefixSuccessor(prefix));
+    }
+
+    /**
+     * Returns the range of row keys whose leading key fields equal the given values and whose next key field is
+     * between two bounds.
+     *
+     * @param prefixValues   The values of the first key fields, in key order.
+     * @param lower          The lower bound of the next key field, or null for no lower bound.
+     * @param lowerInclusive Whether keys where the next field equals the lower bound are in the range.
+     * @param upper          The upper bound of the next key field, or null for no upper bound.
+     * @param upperInclusive Whether keys where the next field equals the upper bound are in the range.
+     * @return The range of row keys, which is {@link KeyRange#empty()} if no key is between the bounds.
+     */
+    public KeyRange range(List<?> prefixValues, Object lower, boolean lowerInclusive, Object upper, boolean upperInclusive) {
+        checkArgument(prefixValues.size() < fieldCodecs.length,
+            "Bounds need a key field after the %s prefix values, but the key only has %s fields", prefixValues.size(), fieldCodecs.length);
+        byte[] prefix = encodePrefix(prefixValues, null);
+
+        byte[] startRow;
+        if (lower == null) {
+            startRow = prefix;
+        } else {
+            byte[] lowerKey = encodePrefix(prefixValues, lower);
+            // every key whose next field equals the bound starts with lowerKey
+            startRow = lowerInclusive ? lowerKey : KeyRange.prefixSuccessor(lowerKey);
+            if (startRow.length == 0) {
+                // the bound is encoded as 0xff bytes only, e.g. Long.MAX_VALUE, so no key is after it
+                return KeyRange.empty();
+            }
+        }
+
+        byte[] stopRow;
+        if (upper == null) {
+            stopRow = KeyRange.prefixSuccessor(prefix);
+        } else {
+            byte[] upperKey = encodePrefix(prefixValues, upper);
+            stopRow = upperInclusive ? KeyRange.prefixSuccessor(upperKey) : upperKey;
+        }
+        KeyRange range = new KeyRange(startRow, stopRow);
+        // a range whose start and stop rows are equal would scan its start row
+        return range.isEmpty() ? KeyRange.empty() : range;
+    }
+
+    /**
+     * Returns the range of row keys whose leading key fields equal the given values and whose next key field is
+     * at least {@code lower} and less than {@code upper}.
+     *
+     * @see #range(List, Object, boolean, Object, boolean)
+     */
+    public KeyRange range(List<?> prefixValues, Object lower, Object upper) {
+        return range(prefixValues, lower, true, upper, false);
+    }
+
+    /**
+     * Encodes the given leading key field values, followed by the value of the next key field if it isn't null.
+     */
+    private byte[] encodePrefix(List<?> prefixValues, Object nextValue) {
+        checkArgument(prefixValues.size() <= fieldCodecs.length,
+            "Got %s prefix values for a key of %s fields", prefixValues.size(), fieldCodecs.length);
+        MemcmpEncoder encoder = ENCODER.get();
+        encoder.reset();
+        try {
+            for (int i = 0; i < prefixValues.size(); i++) {
+                fieldCodecs[i].encode(prefixValues.get(i), encoder);
+            }
+            if (nextValue != null) {
+                fieldCodecs[prefixValues.size()].encode(nextValue, encoder);
+            }
+        } catch (IOException e) {
+            throw new SerializationException("Could not serialize Avro key prefix", e);
+        }
+        return encoder.toByteArray();
+    }
+
+    private int[] positionsFor(Schema entitySchema) {
+        EntityPositions[] cached = entityPositions;
+        for (EntityPositions candidate : cached) {
+            if (candidate.entitySchema == entitySchema) {
+                return candidate.positions;
+            }
+        }
+        // an equal schema parsed separately has its fields at the same positions
+        EntityPositions added = null;
+        for (EntityPositions candidate : cached) {
+            if (candidate.entitySchema.equals(entitySchema)) {
+                added = new EntityPositions(entitySchema, candidate.positions);
+                break;
+            }
+        }
+        if (added == null) {
+            added = new EntityPositions(schema, entitySchema);
+        }
+        // copy on write, dropping the least recently added schema once full; a racing update may be lost
+        EntityPositions[] updated = new EntityPositions[Math.min(cached.length + 1, MAX_ENTITY_SCHEMAS)];
+        updated[0] = added;
+        System.arraycopy(cached, 0, updated, 1, updated.length - 1);
+        entityPositions = updated;
+        return added.positions;
+    }
+
+    /**
+     * The positions of each key field in an entity schema, indexed by key field position.
+     */
+    private static final class EntityPositions {
+        private final Schema entitySchema;
+        private final int[] positions;
+
+        EntityPositions(Schema entitySchema, int[] positions) {
+            this.entitySchema = entitySchema;
+            this.positions = positions;
+        }
+
+        EntityPositions(Schema keySchema, Schema entitySchema) {
+            this.entitySchema = entitySchema;
+            this.positions = new int[keySchema.getFields().size()];
+            for (Schema.Field keyField : keySchema.getFields()) {
+                Schema.Field entityField = entitySchema.getField(keyField.name());
+                if (entityField == null) {
+                    throw new IllegalArgumentException(
+                        String.format("Key field %s is not part of schema %s", keyField.name(), entitySchema.getFullName()));
+                }
+                positions[keyField.pos()] = entityField.pos();
+            }
+        }
+    }
+
+    /**
+     * Encodes and decodes the value of a single key field.
+     */
+    private interface KeyFieldCodec {
+        void encode(Object value, MemcmpEncoder encoder) throws IOException;
+
+        Object decode(MemcmpDecoder decoder) throws IOException;
+
+        /**
+         * Moves the decoder past the value without materializing it.
+         */
+        default void skip(MemcmpDecoder decoder) throws IOException {
+            decode(decoder);
+        }
+    }
+
+    private static KeyFieldCodec codecFor(Schema fieldSchema) {
+        switch (fieldSchema.getType()) {
+            case INT:
+                return new KeyFieldCodec() {
+                    public void encode(Object value, MemcmpEncoder encoder) throws IOException {
+                        encoder.writeInt(((Number) value).intValue());
+                    }
+
+                    public Object decode(MemcmpDecoder decoder) throws IOException {
+                        return decoder.readInt();
+                    }
+
+                    public void skip(MemcmpDecoder decoder) throws IOException {
+                        decoder.skipFixed(4);
+                    }
+                };
+            case LONG:
+                return new KeyFieldCodec() {
+                    public void encode(Object value, MemcmpEncoder encoder) throws IOException {
+                        encoder.writeLong(((Number) value).longValue());
+                    }
 
-        DatumReader<GenericRecord> datumReader = new GenericDatumReader<>(schema);
-        return AvroUtils.readAvroEntity(decoder, datumReader);
+                    public Object decode(MemcmpDecoder decoder) throws IOException {
+                        return decoder.readLong();
+                    }
+
+                    public void skip(MemcmpDecoder decoder) throws IOException {
+                        decoder.skipFixed(8);
+                    }
+                };
+            case FLOAT:
+                return new KeyFieldCodec() {
+                    public void encode(Object value, MemcmpEncoder encoder) throws IOException {
+                        encoder.writeFloat((Float) value);
+                    }
+
+                    public Object decode(MemcmpDecoder decoder) throws IOException {
+                        return decoder.readFloat();
+                    }
+
+                    public void skip(MemcmpDecoder decoder) throws IOException {
+                        decoder.skipFixed(4);
+                    }
+                };
+            case DOUBLE:
+                return new KeyFieldCodec() {
+                    public void encode(Object value, MemcmpEncoder encoder) throws IOException {
+                        encoder.writeDouble((Double) value);
+                    }
+
+                    public Object decode(MemcmpDecoder decoder) throws IOException {
+                        return decoder.readDouble();
+                    }
+
+                    public void skip(MemcmpDecoder decoder) throws IOException {
+                        decoder.skipFixed(8);
+                    }
+                };
+            case BOOLEAN:
+                return new KeyFieldCodec() {
+                    public void encode(Object value, MemcmpEncoder encoder) throws IOException {
+                        encoder.writeBoolean((Boolean) value);
+                    }
+
+                    public Object decode(MemcmpDecoder decoder) throws IOException {
+                        return decoder.readBoolean();
+                    }
+                };
+            case STRING:
+                final boolean javaString = "String".equals(fieldSchema.getProp(STRING_PROP));
+                return new KeyFieldCodec() {
+                    public void encode(Object value, MemcmpEncoder encoder) throws IOException {
+                        if (value instanceof Utf8) {
+                            encoder.writeString((Utf8) value);
+                        } else {
+                            byte[] bytes = value.toString().getBytes(UTF_8);
+                            encoder.writeBytes(bytes, 0, bytes.length);
+                        }
+                    }
+
+                    public Object decode(MemcmpDecoder decoder) throws IOException {
+                        Utf8 utf8 = decoder.readString(null);
+                        return javaString ? utf8.toString() : utf8;
+                    }
+
+                    public void skip(MemcmpDecoder decoder) throws IOException {
+                        decoder.skipString();
+                    }
+                };
+            case BYTES:
+                return new KeyFieldCodec() {
+                    public void encode(Object value, MemcmpEncoder encoder) throws IOException {
+                        encoder.writeBytes((ByteBuffer) value);
+                    }
+
+                    public Object decode(MemcmpDecoder decoder) throws IOException {
+                        return decoder.readBytes(null);
+                    }
+
+                    public void skip(MemcmpDecoder decoder) throws IOException {
+                        decoder.skipBytes();
+                    }
+                };
+            case NULL:
+                return new KeyFieldCodec() {
+                    public void encode(Object value, MemcmpEncoder encoder) throws IOException {
+                    }
+
+                    public Object decode(MemcmpDecoder decoder) throws IOException {
+                        return null;
+                    }
+                };
+            default:
+                return new DatumKeyFieldCodec(fieldSchema);
+        }
+    }
+
+    /**
+     * Falls back to a DatumWriter and DatumReader for enum, fixed and complex key fields. DatumReaders are not
+     * safe to share between threads, so there is one per thread.
+     */
+    private static final class DatumKeyFieldCodec implements KeyFieldCodec {
+        private final DatumWriter<Object> datumWriter;
+        private final ThreadLocal<DatumReader<Object>> datumReader;
+
+        DatumKeyFieldCodec(Schema fieldSchema) {
+            this.datumWriter = new GenericDatumWriter<>(fieldSchema);
+            this.datumReader = ThreadLocal.withInitial(() -> new GenericDatumReader<>(fieldSchema));
+        }
+
+        public void encode(Object value, MemcmpEncoder encoder) throws IOException {
+            datumWriter.write(value, encoder);
+        }
+
+        public Object decode(MemcmpDecoder decoder) throws IOException {
+            return datumReader.get().read(null, decoder);
+        }
     }
 }
@@ -21,6 +21,14 @@ public interface AvroRecordBuilder<T> {
      */
     void put(String field, Object value);
 
+    /**
+     * Add a value to a field of an avro record.
+     *
+     * @param pos   The position of the field in the record schema.
+     * @param value The value to add.
+     */
+    void put(int pos, Object value);
+
     /**
      * Build the avro record.
      *
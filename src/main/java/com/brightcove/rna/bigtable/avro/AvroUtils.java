@@ -24,14 +24,14 @@ public class AvroUtils {
 
     /**
      * Given a byte array and a DatumReader, decode an avro entity from the byte array. Decodes using the avro
-     * BinaryDecoder. Return the constructed entity.
+     * BinaryDecoder, reusing the decoder of the current thread. Return the constructed entity.
      *
      * @param bytes  The byte array to decode the entity from.
      * @param reader The DatumReader that will decode the byte array.
      * @return The Avro entity.
      */
     public static <T> T readAvroEntity(byte[] bytes, DatumReader<T> reader) {
-        Decoder decoder = DecoderFactory.get().binaryDecoder(bytes, null);
+        Decoder decoder = CodecScratch.get().binaryDecoder(bytes, 0, bytes.length);
         return AvroUtils.readAvroEntity(decoder, reader);
     }
 
@@ -52,17 +52,16 @@ public class AvroUtils {
 
     /**
      * Given an entity and a DatumReader, encode the avro entity to a byte array.
-     * Encodes using the avro BinaryEncoder. Return the serialized bytes.
+     * Encodes using the avro BinaryEncoder and scratch buffer of the current thread. Return the serialized bytes.
      *
      * @param entity The entity we want to encode.
      * @param writer The DatumWriter we'll use to encode the entity to a byte array
      * @return The avro entity encoded in a byte array.
      */
     public static <T> byte[] writeAvroEntity(T entity, DatumWriter<T> writer) {
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        Encoder encoder = new EncoderFactory().binaryEncoder(outputStream, null);
-        writeAvroEntity(entity, encoder, writer);
-        return outputStream.toByteArray();
+        CodecScratch scratch = CodecScratch.get();
+        writeAvroEntity(entity, scratch.binaryEncoder(), writer);
+        return scratch.toByteArray();
     }
 
     /**
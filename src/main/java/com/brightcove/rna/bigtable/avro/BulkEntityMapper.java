@@ -0,0 +1,198 @@
+package com.brightcove.rna.bigtable.avro;
+
+import com.brightcove.rna.bigtable.EntityMapper;
+import com.google.common.base.Preconditions;
+import org.apache.avro.generic.IndexedRecord;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Maps large collections of HBase results or entities by splitting them into batches that are mapped in parallel
+ * on a {@link ForkJoinPool}.
+ * <p>
+ * All workers share the same {@link AvroEntityMapper}, so it relies on the thread-safety that {@link EntityMapper}
+ * requires of its implementations, which AvroEntityMapper provides by keeping its Avro readers per thread.
+ * <p>
+ * In both modes the output list has one entry per input element, null for an empty row, and the map methods return
+ * once every batch is done. When order is preserved each entry is at the index of its input element. Otherwise the
+ * batches are appended in the order they finish, which saves the copy into a shared array but gives no other order.
+ *
+ * @param <E> The entity type
+ */
+public class BulkEntityMapper<E extends IndexedRecord> {
+    public static final int DEFAULT_BATCH_SIZE = 1024;
+
+    private final AvroEntityMapper<E> entityMapper;
+    private final ForkJoinPool pool;
+    private final int batchSize;
+    private final boolean preserveOrder;
+
+    private final LongAdder rowsMapped = new LongAdder();
+    private final LongAdder entitiesMapped = new LongAdder();
+    private final LongAdder batchesMapped = new LongAdder();
+    private final LongAdder mappingNanos = new LongAdder();
+
+    /**
+     * Creates a bulk mapper that runs on the common pool, uses the default batch size and preserves order.
+     */
+    public BulkEntityMapper(AvroEntityMapper<E> entityMapper) {
+        this(entityMapper, ForkJoinPool.commonPool(), DEFAULT_BATCH_SIZE, true);
+    }
+
+    /**
+     * @param entityMapper  The mapper used for every element.
+     * @param pool          The pool the batches are mapped on.
+     * @param batchSize     The number of elements a single task maps sequentially.
+     * @param preserveOrder Whether the output must be in the order of the input.
+     */
+    public BulkEntityMapper(AvroEntityMapper<E> entityMapper, ForkJoinPool pool, int batchSize, boolean preserveOrder) {
+        Preconditions.checkNotNull(entityMapper, "entityMapper cannot be null");
+        Preconditions.checkNotNull(pool, "pool cannot be null");
+        Preconditions.checkArgument(batchSize > 0, "batchSize must be positive, was %s", batchSize);
+        this.entityMapper = entityMapper;
+        this.pool = pool;
+        this.batchSize = batchSize;
+        this.preserveOrder = preserveOrder;
+    }
+
+    /**
+     * Map HBase results to entities.
+     *
+     * @param results The results, e.g. the rows of a scan.
+     * @return The mapped entities, one per result, with null for an empty result.
+     */
+    public List<E> mapToEntities(List<Result> results) {
+        return map(results, entityMapper::mapToEntity, rowsMapped);
+    }
+
+    /**
+     * Map entities to HBase puts.
+     *
+     * @param entities The entities to map.
+     * @return The mapped puts, one per entity.
+     */
+    public List<Put> mapFromEntities(List<? extends E> entities) {
+        return map(entities, entityMapper::mapFromEntity, entitiesMapped);
+    }
+
+    /**
+     * @return The total number of results mapped to entities.
+     */
+    public long getRowsMapped() {
+        return rowsMapped.sum();
+    }
+
+    /**
+     * @return The total number of entities mapped to puts.
+     */
+    public long getEntitiesMapped() {
+        return entitiesMapped.sum();
+    }
+
+    /**
+     * @return The total number of batches mapped by the workers.
+     */
+    public long getBatchesMapped() {
+        return batchesMapped.sum();
+    }
+
+    /**
+     * @return The time spent mapping, summed over all workers, in nanoseconds. Dividing the number of mapped
+     * elements by this gives the per-thread throughput, which together with the wall clock throughput shows
+     * whether adding threads to the pool still pays off.
+     */
+    public long getMappingNanos() {
+        return mappingNanos.sum();
+    }
+
+    /**
+     * Resets all counters to zero.
+     */
+    public void resetStats() {
+        rowsMapped.reset();
+        entitiesMapped.reset();
+        batchesMapped.reset();
+        mappingNanos.reset();
+    }
+
+    private <I, O> List<O> map(List<? extends I> input, Function<? super I, ? extends O> function, LongAdder counter) {
+        Preconditions.checkNotNull(input, "input cannot be null");
+        if (input.isEmpty()) {
+            return new ArrayList<>();
+        }
+        // random access lets the tasks split the input by index without copying it
+        List<? extends I> elements = input instanceof RandomAccess ? input : new ArrayList<>(input);
+        if (preserveOrder) {
+            Object[] output = new Object[elements.size()];
+            pool.invoke(new MapTask<>(elements, 0, elements.size(), function, counter, output, null));
+            @SuppressWarnings("unchecked")
+            List<O> result = (List<O>) Arrays.asList(output);
+            return result;
+        }
+        Queue<List<O>> batches = new ConcurrentLinkedQueue<>();
+        pool.invoke(new MapTask<>(elements, 0, elements.size(), function, counter, null, batches));
+        List<O> result = new ArrayList<>(elements.size());
+        batches.forEach(result::addAll);
+        return result;
+    }
+
+    private class MapTask<I, O> extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<? extends I> input;
+        private final int from;
+        private final int to;
+        private final Function<? super I, ? extends O> function;
+        private final LongAdder counter;
+        private final Object[] output;
+        private final Queue<List<O>> batches;
+
+        MapTask(List<? extends I> input, int from, int to, Function<? super I, ? extends O> function,
+                LongAdder counter, Object[] output, Queue<List<O>> batches) {
+            this.input = input;
+            this.from = from;
+            this.to = to;
+            this.function = function;
+            this.counter = counter;
+            this.output = output;
+            this.batches = batches;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > batchSize) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new MapTask<>(input, from, middle, function, counter, output, batches),
+                          new MapTask<>(input, middle, to, function, counter, output, batches));
+                return;
+            }
+
+            long start = System.nanoTime();
+            if (output != null) {
+                for (int i = from; i < to; i++) {
+                    output[i] = function.apply(input.get(i));
+                }
+            } else {
+                List<O> batch = new ArrayList<>(to - from);
+                for (int i = from; i < to; i++) {
+                    batch.add(function.apply(input.get(i)));
+                }
+                batches.add(batch);
+            }
+            mappingNanos.add(System.nanoTime() - start);
+            counter.add(to - from);
+            batchesMapped.increment();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.brightcove.rna.bigtable.avro;
+
+import com.brightcove.rna.bigtable.avro.io.ColumnDecoder;
+import com.brightcove.rna.bigtable.avro.io.ColumnEncoder;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+/**
+ * The buffer, encoders and decoders used to serialize and deserialize column
+ * values. There is one instance per thread, so serializing a value only
+ * allocates the resulting byte array and deserializing one allocates nothing
+ * but the value itself.
+ * <p>
+ * Every accessor hands out an encoder or decoder that is reset for a new value.
+ * It must be done with before the next accessor is called on the same thread.
+ */
+final class CodecScratch {
+
+    private static final ThreadLocal<CodecScratch> SCRATCH = ThreadLocal.withInitial(CodecScratch::new);
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+    private final ColumnEncoder columnEncoder = new ColumnEncoder(out);
+    private BinaryEncoder binaryEncoder = EncoderFactory.get().binaryEncoder(out, null);
+
+    private final ReusableByteArrayInputStream in = new ReusableByteArrayInputStream();
+    private final ColumnDecoder columnDecoder = new ColumnDecoder(in);
+    private BinaryDecoder binaryDecoder;
+
+    private CodecScratch() {
+    }
+
+    /**
+     * @return The instance for the current thread.
+     */
+    static CodecScratch get() {
+        return SCRATCH.get();
+    }
+
+    /**
+     * @return A ColumnEncoder writing to the (emptied) scratch buffer.
+     */
+    ColumnEncoder columnEncoder() {
+        out.reset();
+        return columnEncoder;
+    }
+
+    /**
+     * @return A BinaryEncoder writing to the (emptied) scratch buffer. It must be flushed before the bytes are taken.
+     */
+    BinaryEncoder binaryEncoder() {
+        // re-configuring drops anything left behind by a write that failed half way
+        binaryEncoder = EncoderFactory.get().binaryEncoder(out, binaryEncoder);
+        out.reset();
+        return binaryEncoder;
+    }
+
+    /**
+     * @return A copy of the bytes written to the scratch buffer by the last encoder handed out.
+     */
+    byte[] toByteArray() {
+        return out.toByteArray();
+    }
+
+    /**
+     * @return A ColumnDecoder reading the given slice.
+     */
+    ColumnDecoder columnDecoder(byte[] bytes, int offset, int length) {
+        in.reset(bytes, offset, length);
+        return columnDecoder;
+    }
+
+    /**
+     * @return A BinaryDecoder reading the given slice.
+     */
+    BinaryDecoder binaryDecoder(byte[] bytes, int offset, int length) {
+        binaryDecoder = DecoderFactory.get().binaryDecoder(bytes, offset, length, binaryDecoder);
+        return binaryDecoder;
+    }
+
+    /**
+     * A ByteArrayInputStream that can be pointed at another array.
+     */
+    private static final class ReusableByteArrayInputStream extends ByteArrayInputStream {
+        ReusableByteArrayInputStream() {
+            super(new byte[0]);
+        }
+
+        void reset(byte[] bytes, int offset, int length) {
+            this.buf = bytes;
+            this.pos = offset;
+            this.mark = offset;
+            this.count = offset + length;
+        }
+    }
+}
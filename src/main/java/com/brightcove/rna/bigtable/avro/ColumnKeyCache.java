@@ -0,0 +1,73 @@
+package com.brightcove.rna.bigtable.avro;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Interns the keys of a keyAsColumn map field and their UTF-8 qualifier bytes, so the keys that occur in most rows
+ * are converted once rather than once per cell.
+ * <p>
+ * Each direction is a fixed size, direct mapped table: a key that hashes to the slot of another one replaces it, so
+ * the memory used is bounded and lookups take no locks. Entries are immutable and a slot is replaced with a single
+ * reference write, so instances are thread-safe; threads racing on a slot at worst convert a key twice.
+ */
+final class ColumnKeyCache {
+    private static final int SLOTS = 1024;
+
+    private final Entry[] byBytes = new Entry[SLOTS];
+    private final Entry[] byKey = new Entry[SLOTS];
+
+    /**
+     * Returns the key whose UTF-8 encoding is a slice of an array.
+     *
+     * @param bytes  The array holding the qualifier.
+     * @param offset The offset of the qualifier.
+     * @param length The length of the qualifier.
+     * @return The key, which may be shared with other callers.
+     */
+    String decode(byte[] bytes, int offset, int length) {
+        int slot = slot(Bytes.hashCode(bytes, offset, length));
+        Entry entry = byBytes[slot];
+        if (entry != null && Bytes.equals(entry.bytes, 0, entry.bytes.length, bytes, offset, length)) {
+            return entry.key;
+        }
+        byte[] copy = Arrays.copyOfRange(bytes, offset, offset + length);
+        entry = new Entry(new String(copy, StandardCharsets.UTF_8), copy);
+        byBytes[slot] = entry;
+        return entry.key;
+    }
+
+    /**
+     * Returns the UTF-8 encoding of a key.
+     *
+     * @param key The key.
+     * @return The encoded key, which is shared with other callers and must not be modified.
+     */
+    byte[] encode(String key) {
+        int slot = slot(key.hashCode());
+        Entry entry = byKey[slot];
+        if (entry != null && entry.key.equals(key)) {
+            return entry.bytes;
+        }
+        entry = new Entry(key, key.getBytes(StandardCharsets.UTF_8));
+        byKey[slot] = entry;
+        return entry.bytes;
+    }
+
+    private static int slot(int hash) {
+        // mix the high bits in, since the low bits of string hashes of similar keys are alike
+        return (hash ^ (hash >>> 16)) & (SLOTS - 1);
+    }
+
+    private static final class Entry {
+        final String key;
+        final byte[] bytes;
+
+        Entry(String key, byte[] bytes) {
+            this.key = key;
+            this.bytes = bytes;
+        }
+    }
+}
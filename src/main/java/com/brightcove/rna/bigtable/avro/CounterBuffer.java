@@ -0,0 +1,355 @@
+package com.brightcove.rna.bigtable.avro;
+
+import com.brightcove.rna.bigtable.BufferedMutatorSink;
+import com.brightcove.rna.bigtable.MutationSink;
+import com.brightcove.rna.bigtable.TableSink;
+import org.apache.avro.generic.IndexedRecord;
+import org.apache.hadoop.hbase.client.Increment;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Sums the counter fields of entities in memory and writes the sums to a {@link MutationSink} as one
+ * {@link Increment} per row, so many small updates of the same counters cost a single increment per flush.
+ * <p>
+ * The sums are kept per row key in a long array indexed by counter field, in one of several stripes chosen by the
+ * hash of the row key, so threads adding to different rows rarely contend. The buffer is flushed every flush
+ * interval, and a stripe is flushed on its own as soon as it holds its share of {@code maxRows} rows, which bounds
+ * the memory held by the buffer.
+ * <p>
+ * Increments are not idempotent, so the sums of a write that fails are dropped rather than retried, and counted by
+ * {@link #getIncrementsDropped()}. This needs a sink that writes synchronously, whose write returns only once the
+ * Increments are applied or have failed, such as a {@link TableSink}. A {@link BufferedMutatorSink} is refused: a
+ * BufferedMutator does not support Increments, and it retries writes and reports failures in the background.
+ * <p>
+ * A failed write only drops the sums of its own stripe: flushes and {@link #close()} still write every other stripe,
+ * and the buffer stays usable. The failure of a periodic flush is thrown once, by the next call to {@link #add} or
+ * {@link #flush()}. Every counter field must be a long, see {@link AvroEntityMapper#mapToIncrement}. CounterBuffers
+ * are thread-safe.
+ *
+ * @param <E> The entity type
+ */
+public class CounterBuffer<E extends IndexedRecord> implements Closeable {
+    public static final int DEFAULT_STRIPES = 16;
+    public static final int DEFAULT_MAX_ROWS = 10000;
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000;
+
+    private final AvroEntityMapper<E> entityMapper;
+    private final MutationSink sink;
+    private final Stripe[] stripes;
+    private final int maxRowsPerStripe;
+    private final int counters;
+    private final ScheduledExecutorService flusher;
+
+    private volatile boolean closed;
+    private final AtomicReference<IOException> failure = new AtomicReference<>();
+
+    private final LongAdder entitiesAdded = new LongAdder();
+    private final LongAdder deltasAdded = new LongAdder();
+    private final LongAdder incrementsWritten = new LongAdder();
+    private final LongAdder incrementsDropped = new LongAdder();
+    private final LongAdder cellsWritten = new LongAdder();
+    private final LongAdder flushNanos = new LongAdder();
+
+    /**
+     * Creates a buffer with the default number of stripes, maximum number of rows and flush interval.
+     */
+    public CounterBuffer(AvroEntityMapper<E> entityMapper, MutationSink sink) {
+        this(entityMapper, sink, DEFAULT_STRIPES, DEFAULT_MAX_ROWS, DEFAULT_FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param entityMapper  The mapper of the entities, whose counter fields must be longs.
+     * @param sink          The sink the Increments are written to, which must write synchronously and is closed with
+     *                      the buffer.
+     * @param stripes       The number of stripes, rounded up to a power of two.
+     * @param maxRows       The number of rows the buffer holds before flushing, split evenly between the stripes.
+     * @param flushInterval The time between two flushes of the whole buffer.
+     * @param unit          The unit of the flush interval.
+     * @throws IllegalArgumentException if the sink is a {@link BufferedMutatorSink}.
+     * @throws IllegalStateException if a counter field is an int.
+     */
+    public CounterBuffer(AvroEntityMapper<E> entityMapper, MutationSink sink, int stripes, int maxRows,
+                         long flushInterval, TimeUnit unit) {
+        checkNotNull(entityMapper, "entityMapper cannot be null");
+        checkNotNull(sink, "sink cannot be null");
+        checkArgument(!(sink instanceof BufferedMutatorSink), "Increments cannot be written to a BufferedMutatorSink, use a TableSink");
+        checkArgument(stripes > 0, "stripes must be positive, was %s", stripes);
+        checkArgument(maxRows >= stripes, "maxRows (%s) cannot be less than stripes (%s)", maxRows, stripes);
+        checkArgument(flushInterval > 0, "flushInterval must be positive, was %s", flushInterval);
+        entityMapper.checkLongCounters();
+        this.entityMapper = entityMapper;
+        this.sink = sink;
+        int stripeCount = 1;
+        while (stripeCount < stripes) {
+            stripeCount <<= 1;
+        }
+        this.stripes = new Stripe[stripeCount];
+        for (int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i] = new Stripe();
+        }
+        this.maxRowsPerStripe = Math.max(1, maxRows / this.stripes.length);
+        this.counters = entityMapper.counterCount();
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "counter-buffer-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushInterval, flushInterval, unit);
+    }
+
+    /**
+     * Adds the counter fields of an entity to the sums of its row. The other fields are ignored.
+     *
+     * @param entity The entity holding the deltas of its counters.
+     * @throws IOException if a periodic flush failed since the last call to add or flush, in which case the entity is
+     *                     not added, or if this call filled a stripe and writing it failed.
+     * @throws IllegalStateException if the buffer is closed.
+     */
+    public void add(E entity) throws IOException {
+        throwIfFailed();
+        checkState(!closed, "CounterBuffer is closed");
+        entitiesAdded.increment();
+        long[] deltas = null;
+        int count = 0;
+        for (int i = 0; i < counters; i++) {
+            long delta = entityMapper.counterDelta(entity, i);
+            if (delta != 0) {
+                if (deltas == null) {
+                    deltas = new long[counters];
+                }
+                deltas[i] = delta;
+                count++;
+            }
+        }
+        if (deltas == null) {
+            return;
+        }
+        deltasAdded.add(count);
+
+        ByteBuffer row = ByteBuffer.wrap(entityMapper.getKeySerDe().serialize(entity));
+        Stripe stripe = stripes[spread(row.hashCode()) & (stripes.length - 1)];
+        Map<ByteBuffer, long[]> full = null;
+        synchronized (stripe) {
+            // close() sets closed before draining the stripes, so deltas added past this check are still flushed
+            checkState(!closed, "CounterBuffer is closed");
+            // the deltas of the first entity of a row become the sums of the row
+            long[] sums = stripe.rows.putIfAbsent(row, deltas);
+            if (sums != null) {
+                for (int i = 0; i < counters; i++) {
+                    sums[i] += deltas[i];
+                }
+            } else if (stripe.rows.size() >= maxRowsPerStripe) {
+                full = stripe.drain();
+            }
+        }
+        if (full != null) {
+            write(full);
+        }
+    }
+
+    /**
+     * Writes the sums of every row to the sink and flushes it. Every stripe is written even if writing another one
+     * fails.
+     *
+     * @throws IOException if a periodic flush failed since the last call to add or flush, or if the sums of a stripe
+     *                     could not be written, in which case they are dropped.
+     */
+    public void flush() throws IOException {
+        IOException failed = takeFailure();
+        IOException error = writeAll();
+        if (failed != null || error != null) {
+            throw failed != null ? failed : error;
+        }
+    }
+
+    /**
+     * Stops the periodic flushes, flushes the buffer and closes the sink. Like {@link #flush()}, every stripe is
+     * written even if writing another one fails.
+     *
+     * @throws IOException if a periodic flush failed since the last call to add or flush, if the sums of a stripe
+     *                     could not be written, or if the sink could not be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            flush();
+        } finally {
+            synchronized (sink) {
+                sink.close();
+            }
+        }
+    }
+
+    /**
+     * @return The number of entities added.
+     */
+    public long getEntitiesAdded() {
+        return entitiesAdded.sum();
+    }
+
+    /**
+     * @return The number of non-zero counter values added, which is the number of cells that would have been
+     * incremented without the buffer.
+     */
+    public long getDeltasAdded() {
+        return deltasAdded.sum();
+    }
+
+    /**
+     * @return The number of Increments written to the sink, one per row and flush.
+     */
+    public long getIncrementsWritten() {
+        return incrementsWritten.sum();
+    }
+
+    /**
+     * @return The number of Increments dropped because writing them to the sink failed, one per row and failed write.
+     */
+    public long getIncrementsDropped() {
+        return incrementsDropped.sum();
+    }
+
+    /**
+     * @return The number of cells incremented by the Increments written to the sink.
+     */
+    public long getCellsWritten() {
+        return cellsWritten.sum();
+    }
+
+    /**
+     * @return The number of cell increments saved by summing the deltas, once the buffer is flushed. Deltas that
+     * cancelled each other out count as saved.
+     */
+    public long getCellsSaved() {
+        return deltasAdded.sum() - cellsWritten.sum();
+    }
+
+    /**
+     * @return The time spent writing to the sink, in nanoseconds.
+     */
+    public long getFlushNanos() {
+        return flushNanos.sum();
+    }
+
+    private void flushQuietly() {
+        IOException error = writeAll();
+        if (error != null) {
+            // thrown by the next call to add or flush
+            failure.compareAndSet(null, error);
+        }
+    }
+
+    /**
+     * Writes every stripe and flushes the sink, going on after a failure.
+     *
+     * @return The first failure, or null.
+     */
+    private IOException writeAll() {
+        IOException error = null;
+        for (Stripe stripe : stripes) {
+            Map<ByteBuffer, long[]> rows;
+            synchronized (stripe) {
+                rows = stripe.drain();
+            }
+            try {
+                write(rows);
+            } catch (IOException e) {
+                error = error == null ? e : error;
+            }
+        }
+        try {
+            synchronized (sink) {
+                sink.flush();
+            }
+        } catch (IOException e) {
+            error = error == null ? e : error;
+        }
+        return error;
+    }
+
+    private void write(Map<ByteBuffer, long[]> rows) throws IOException {
+        List<Increment> increments = new ArrayList<>(rows.size());
+        int cells = 0;
+        for (Map.Entry<ByteBuffer, long[]> row : rows.entrySet()) {
+            Increment increment = entityMapper.toIncrement(row.getKey().array(), row.getValue());
+            if (increment != null) {
+                increments.add(increment);
+                cells += increment.size();
+            }
+        }
+        if (increments.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            synchronized (sink) {
+                sink.write(increments);
+            }
+        } catch (IOException | RuntimeException e) {
+            incrementsDropped.add(increments.size());
+            throw e instanceof IOException ? (IOException) e : new IOException("Failed to write increments", e);
+        } finally {
+            flushNanos.add(System.nanoTime() - start);
+        }
+        incrementsWritten.add(increments.size());
+        cellsWritten.add(cells);
+    }
+
+    private void throwIfFailed() throws IOException {
+        IOException error = takeFailure();
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * @return The failure of a periodic flush not thrown yet, or null.
+     */
+    private IOException takeFailure() {
+        IOException error = failure.getAndSet(null);
+        return error == null ? null : new IOException("Periodic flush failed: " + error.getMessage(), error);
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static final class Stripe {
+        Map<ByteBuffer, long[]> rows = new HashMap<>();
+
+        /**
+         * Takes the rows out of the stripe. Called while holding the stripe's monitor.
+         */
+        Map<ByteBuffer, long[]> drain() {
+            Map<ByteBuffer, long[]> drained = rows;
+            rows = new HashMap<>();
+            return drained;
+        }
+    }
+}
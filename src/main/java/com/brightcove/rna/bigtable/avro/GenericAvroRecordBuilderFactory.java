@@ -37,6 +37,11 @@ public class GenericAvroRecordBuilderFactory implements AvroRecordBuilderFactory
             record.put(field, value);
         }
 
+        @Override
+        public void put(int pos, Object value) {
+            record.put(pos, value);
+        }
+
         @Override
         public GenericRecord build() {
             return record;
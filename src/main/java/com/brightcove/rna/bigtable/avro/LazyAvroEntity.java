@@ -0,0 +1,133 @@
+package com.brightcove.rna.bigtable.avro;
+
+import org.apache.avro.AvroRuntimeException;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.generic.IndexedRecord;
+import org.apache.hadoop.hbase.client.Result;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * A view of an entity backed by the HBase Result of its row, which deserializes a field the first time it is read
+ * and then keeps the value. Created by {@link AvroEntityMapper#mapToLazyEntity(Result)}.
+ * <p>
+ * Values put into the view replace the stored ones without touching the Result. Instances are not thread-safe.
+ *
+ * @param <E> The type of the entity the view can be converted to.
+ */
+public class LazyAvroEntity<E extends IndexedRecord> implements GenericRecord {
+
+    /**
+     * Marks the fields that have not been deserialized yet, since null is a valid field value.
+     */
+    private static final Object NOT_DESERIALIZED = new Object();
+
+    private final AvroEntityMapper<E> entityMapper;
+    private final Result result;
+    private final Schema schema;
+    private final Object[] values;
+
+    LazyAvroEntity(AvroEntityMapper<E> entityMapper, Result result) {
+        this.entityMapper = entityMapper;
+        this.result = result;
+        this.schema = ((AvroEntitySchema) entityMapper.getEntitySchema()).getAvroSchema();
+        this.values = new Object[schema.getFields().size()];
+        Arrays.fill(values, NOT_DESERIALIZED);
+    }
+
+    /**
+     * @return The HBase Result backing this view.
+     */
+    public Result getResult() {
+        return result;
+    }
+
+    /**
+     * Builds the entity with every field of the view, deserializing the fields that have not been read yet.
+     *
+     * @return The entity.
+     */
+    public E toEntity() {
+        AvroEntityComposer.Builder<E> builder = entityMapper.getEntityComposer().getBuilder();
+        for (int i = 0; i < values.length; i++) {
+            Object value = get(i);
+            if (value != null) {
+                builder.put(i, value);
+            }
+        }
+        return builder.build();
+    }
+
+    @Override
+    public Schema getSchema() {
+        return schema;
+    }
+
+    @Override
+    public Object get(int i) {
+        Object value = values[i];
+        if (value == NOT_DESERIALIZED) {
+            value = entityMapper.deserializeField(i, result);
+            values[i] = value;
+        }
+        return value;
+    }
+
+    @Override
+    public void put(int i, Object v) {
+        values[i] = v;
+    }
+
+    @Override
+    public Object get(String key) {
+        Schema.Field field = schema.getField(key);
+        return field == null ? null : get(field.pos());
+    }
+
+    @Override
+    public void put(String key, Object v) {
+        Schema.Field field = schema.getField(key);
+        if (field == null) {
+            throw new AvroRuntimeException("Not a valid schema field: " + key);
+        }
+        put(field.pos(), v);
+    }
+
+    /**
+     * Views are only equal to views: records and specific entities do not consider a view equal to them, so
+     * accepting them here would make equality asymmetric. Compare an entity with {@link #toEntity()} instead.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (!(o instanceof LazyAvroEntity)) {
+            return false;
+        }
+        LazyAvroEntity<?> that = (LazyAvroEntity<?>) o;
+        if (!schema.equals(that.getSchema())) {
+            return false;
+        }
+        // GenericData's ordering compare throws on map fields, so compare the values themselves
+        for (int i = 0; i < values.length; i++) {
+            if (!Objects.equals(get(i), that.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        return GenericData.get().hashCode(this, schema);
+    }
+
+    @Override
+    public String toString() {
+        return GenericData.get().toString(this);
+    }
+}
@@ -1,14 +1,26 @@
 package com.brightcove.rna.bigtable.avro;
 
+import com.google.common.base.Throwables;
+import org.apache.avro.Schema;
 import org.apache.avro.specific.SpecificRecord;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.lang.reflect.Constructor;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.function.Supplier;
 
 /**
  * An AvroRecordBuilderFactory instance that can construct AvroRecordBuilders
  * which are able to build Avro SpecificRecord types.
+ * <p>
+ * The default constructor of the record class is resolved once, into a Supplier generated with
+ * {@link LambdaMetafactory} that calls it like a {@code new} expression would. If the class cannot be linked from
+ * the generated Supplier (e.g. when it was loaded by a class loader this library cannot see), the factory falls back
+ * to invoking a method handle of the constructor. Either way, building a record does no reflection.
  *
  * @param <T> The type of SpecificRecord this factory creates builders for.
  */
@@ -17,7 +29,8 @@ public class SpecificAvroRecordBuilderFactory<T extends SpecificRecord> implemen
     private static final Logger LOG = LoggerFactory.getLogger(SpecificAvroRecordBuilderFactory.class);
 
     private final Class<T> recordClass;
-    private final Constructor<T> recordClassConstructor;
+    private final Supplier<T> recordSupplier;
+    private final Schema recordSchema;
 
     /**
      * Construct the factory, giving it the class of the SpecificRecord the
@@ -27,17 +40,44 @@ public class SpecificAvroRecordBuilderFactory<T extends SpecificRecord> implemen
      */
     public SpecificAvroRecordBuilderFactory(Class<T> recordClass) {
         this.recordClass = recordClass;
+        MethodHandle constructor;
         try {
-            // Get the constructor of the class so we don't have to perform this expensive reflection call for every
-            // builder constructed.
-            this.recordClassConstructor = recordClass.getConstructor();
-        } catch (Exception e) {
-            // A number of reflection exceptions could be caught here. No good way to handle these types of exceptions,
-            // so throw an DatasetException up to the user.
+            constructor = MethodHandles.publicLookup().findConstructor(recordClass, MethodType.methodType(void.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
             String msg = "Could not get a default constructor for class: " + recordClass.toString();
             LOG.error(msg, e);
             throw new IllegalArgumentException(msg, e);
         }
+        this.recordSupplier = supplier(recordClass, constructor);
+        // the schema of a specific record class is a constant, so any instance will do
+        this.recordSchema = recordSupplier.get().getSchema();
+    }
+
+    /**
+     * Returns a Supplier calling a constructor, preferring a generated one to one that invokes the method handle.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> Supplier<T> supplier(Class<T> recordClass, MethodHandle constructor) {
+        try {
+            CallSite site = LambdaMetafactory.metafactory(MethodHandles.lookup(), "get",
+                MethodType.methodType(Supplier.class), MethodType.methodType(Object.class), constructor,
+                MethodType.methodType(recordClass));
+            Supplier<T> supplier = (Supplier<T>) site.getTarget().invokeExact();
+            // the generated class only links against the record class when first called
+            supplier.get();
+            return supplier;
+        } catch (VirtualMachineError e) {
+            throw e;
+        } catch (Throwable e) {
+            LOG.debug("Could not generate a constructor Supplier for {}, invoking its method handle instead", recordClass, e);
+            return () -> {
+                try {
+                    return (T) constructor.invoke();
+                } catch (Throwable t) {
+                    throw Throwables.propagate(t);
+                }
+            };
+        }
     }
 
     /**
@@ -47,30 +87,22 @@ public class SpecificAvroRecordBuilderFactory<T extends SpecificRecord> implemen
      */
     private static class SpecificAvroRecordBuilder<T extends SpecificRecord> implements AvroRecordBuilder<T> {
 
-        private T specificRecord;
+        private final T specificRecord;
+        private final Schema recordSchema;
 
-        /**
-         * Constructor takes the constructor of the SpecificRecord, and will use
-         * that to create a new SpecificRecord instance.
-         *
-         * @param recordConstructor The SpecificRecord constructor.
-         */
-        public SpecificAvroRecordBuilder(Constructor<T> recordConstructor) {
-            try {
-                specificRecord = recordConstructor.newInstance();
-            } catch (Exception e) {
-                // A large number of reflection errors can occur here. There
-                // is really no proper way to handle this type of error, so
-                // throw a RuntimeException up to the user.
-                LOG.error("Could not create a SpecificRecord instance.", e);
-                throw new RuntimeException(e);
-            }
+        SpecificAvroRecordBuilder(T specificRecord, Schema recordSchema) {
+            this.specificRecord = specificRecord;
+            this.recordSchema = recordSchema;
         }
 
         @Override
         public void put(String field, Object value) {
-            int fieldPos = specificRecord.getSchema().getField(field).pos();
-            specificRecord.put(fieldPos, value);
+            specificRecord.put(recordSchema.getField(field).pos(), value);
+        }
+
+        @Override
+        public void put(int pos, Object value) {
+            specificRecord.put(pos, value);
         }
 
         @Override
@@ -81,11 +113,7 @@ public class SpecificAvroRecordBuilderFactory<T extends SpecificRecord> implemen
 
     @Override
     public AvroRecordBuilder<T> getBuilder() {
-        try {
-            return new SpecificAvroRecordBuilder<>(recordClassConstructor);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+        return new SpecificAvroRecordBuilder<>(recordSupplier.get(), recordSchema);
     }
 
     @Override
@@ -23,16 +23,35 @@ import java.nio.ByteBuffer;
  * <p>
  * Strings are encoded as UTF-8 bytes. This is consistent
  * with HBase, and will allow appends in the future.
+ * <p>
+ * The wrapped BinaryDecoder is unbuffered, so it never reads ahead of the
+ * values read directly from the input stream. A decoder bound to a stream
+ * whose contents get replaced can therefore be reused for any number of
+ * values.
  */
 public class ColumnDecoder extends Decoder {
 
     private final BinaryDecoder wrappedDecoder;
     private final InputStream in;
     private final DataInputStream dataIn;
+    private final byte[] scratch = new byte[8];
 
     public ColumnDecoder(InputStream in) {
         this.in = in;
-        this.wrappedDecoder = new DecoderFactory().binaryDecoder(in, null);
+        this.wrappedDecoder = DecoderFactory.get().directBinaryDecoder(in, null);
+        this.dataIn = new DataInputStream(in);
+    }
+
+    /**
+     * Construct a ColumnDecoder that reuses the wrapped decoder of another
+     * ColumnDecoder. The other decoder must not be used afterwards.
+     *
+     * @param in    The input stream to decode from
+     * @param reuse The decoder whose resources are reused
+     */
+    public ColumnDecoder(InputStream in, ColumnDecoder reuse) {
+        this.in = in;
+        this.wrappedDecoder = DecoderFactory.get().directBinaryDecoder(in, reuse.wrappedDecoder);
         this.dataIn = new DataInputStream(in);
     }
 
@@ -48,16 +67,14 @@ public class ColumnDecoder extends Decoder {
 
     @Override
     public int readInt() throws IOException {
-        byte[] b = new byte[4];
-        dataIn.readFully(b);
-        return Bytes.toInt(b);
+        dataIn.readFully(scratch, 0, 4);
+        return Bytes.toInt(scratch, 0);
     }
 
     @Override
     public long readLong() throws IOException {
-        byte[] b = new byte[8];
-        dataIn.readFully(b);
-        return Bytes.toLong(b);
+        dataIn.readFully(scratch, 0, 8);
+        return Bytes.toLong(scratch, 0);
     }
 
     @Override
@@ -73,9 +90,14 @@ public class ColumnDecoder extends Decoder {
     @Override
     public Utf8 readString(Utf8 old) throws IOException {
         int bytesAvailable = in.available(); // assumes 'in' is ByteArrayInputStream so knows length
-        byte[] bytes = new byte[bytesAvailable];
-        in.read(bytes);
-        return new Utf8(bytes);
+        if (old == null) {
+            byte[] bytes = new byte[bytesAvailable];
+            dataIn.readFully(bytes);
+            return new Utf8(bytes);
+        }
+        old.setByteLength(bytesAvailable);
+        dataIn.readFully(old.getBytes(), 0, bytesAvailable);
+        return old;
     }
 
     @Override
@@ -22,6 +22,11 @@ import java.nio.ByteBuffer;
  *
  * Strings are encoded as UTF-8 bytes. This is consistent
  * with HBase, and will allow appends in the future.
+ *
+ * The wrapped BinaryEncoder is unbuffered, so values written
+ * through it and values written directly to the output
+ * stream stay in order, and an encoder bound to a stream
+ * that gets reset can be reused for any number of values.
  */
 public class ColumnEncoder extends Encoder {
 
@@ -30,12 +35,19 @@ public class ColumnEncoder extends Encoder {
 
     public ColumnEncoder(OutputStream out) {
         this.out = out;
-        wrappedEncoder = new EncoderFactory().binaryEncoder(out, null);
+        wrappedEncoder = EncoderFactory.get().directBinaryEncoder(out, null);
     }
 
+    /**
+     * Construct a ColumnEncoder that reuses the wrapped encoder of another
+     * ColumnEncoder. The other encoder must not be used afterwards.
+     *
+     * @param out   The output stream to encode to
+     * @param reuse The encoder whose resources are reused
+     */
     public ColumnEncoder(OutputStream out, ColumnEncoder reuse) {
         this.out = out;
-        wrappedEncoder = new EncoderFactory().binaryEncoder(out, reuse.wrappedEncoder);
+        wrappedEncoder = EncoderFactory.get().directBinaryEncoder(out, reuse.wrappedEncoder);
     }
 
     @Override
@@ -13,14 +13,64 @@ import java.nio.ByteBuffer;
  * A class that will decode Avro types, whose sort order can be determined by a
  * memcmp. Decodes avro types encoded with the MemcmpEncoder class. See that
  * class for information on how each type of value is encoded.
+ * <p>
+ * The decoder either reads from an InputStream, or directly from a slice of a
+ * byte array. In the latter mode values are read positionally without any
+ * intermediate buffers, strings and bytes are located with a single scan for
+ * their terminator, and the Utf8 or ByteBuffer instances passed in by the
+ * caller are reused whenever they are large enough. A decoder can be pointed at
+ * a new slice with {@link #configure(byte[], int, int)}.
  */
 public class MemcmpDecoder extends Decoder {
     private InputStream in;
+    private final byte[] scratch = new byte[8];
+
+    private byte[] buf;
+    private int pos;
+    private int limit;
+
+    /**
+     * The number of escaped 0x00 bytes found by the last call to {@link #findTerminator()}.
+     */
+    private int escapedZeros;
 
     public MemcmpDecoder(InputStream in) {
         this.in = in;
     }
 
+    public MemcmpDecoder(byte[] bytes) {
+        this(bytes, 0, bytes.length);
+    }
+
+    public MemcmpDecoder(byte[] bytes, int offset, int length) {
+        configure(bytes, offset, length);
+    }
+
+    /**
+     * Point this decoder at a slice of a byte array. Any InputStream the decoder
+     * was constructed with is no longer used.
+     *
+     * @param bytes  The array holding the encoded values.
+     * @param offset The index of the first byte to decode.
+     * @param length The number of bytes that may be decoded.
+     * @return This decoder.
+     */
+    public MemcmpDecoder configure(byte[] bytes, int offset, int length) {
+        this.in = null;
+        this.buf = bytes;
+        this.pos = offset;
+        this.limit = offset + length;
+        return this;
+    }
+
+    /**
+     * @return The index in the backing array of the next byte to decode. Only
+     * meaningful when decoding from a byte array.
+     */
+    public int position() {
+        return pos;
+    }
+
     @Override
     public void readNull() throws IOException {
     }
@@ -32,11 +82,7 @@ public class MemcmpDecoder extends Decoder {
      */
     @Override
     public boolean readBoolean() throws IOException {
-        int byteRead = in.read();
-        if (byteRead == -1) {
-            throw new EOFException();
-        }
-        return byteRead > 0;
+        return readByte() > 0;
     }
 
     /**
@@ -50,18 +96,22 @@ public class MemcmpDecoder extends Decoder {
      */
     @Override
     public int readInt() throws IOException {
-        byte[] intBytes = new byte[4];
-        int i = in.read(intBytes);
-        if (i < 4) {
-            throw new EOFException();
+        byte[] intBytes;
+        int offset;
+        if (in == null) {
+            require(4);
+            intBytes = buf;
+            offset = pos;
+            pos += 4;
+        } else {
+            readFully(scratch, 4);
+            intBytes = scratch;
+            offset = 0;
         }
-        intBytes[0] = (byte) (intBytes[0] ^ 0x80);
-
-        int value = 0;
-        for (int j = 0; j < intBytes.length; ++j) {
-            value = (value << 8) + (intBytes[j] & 0xff);
-        }
-        return value;
+        return ((intBytes[offset] ^ 0x80) & 0xff) << 24
+            | (intBytes[offset + 1] & 0xff) << 16
+            | (intBytes[offset + 2] & 0xff) << 8
+            | (intBytes[offset + 3] & 0xff);
     }
 
     /**
@@ -75,15 +125,20 @@ public class MemcmpDecoder extends Decoder {
      */
     @Override
     public long readLong() throws IOException {
-        byte[] longBytes = new byte[8];
-        int i = in.read(longBytes);
-        if (i < 8) {
-            throw new EOFException();
+        byte[] longBytes;
+        int offset;
+        if (in == null) {
+            require(8);
+            longBytes = buf;
+            offset = pos;
+            pos += 8;
+        } else {
+            readFully(scratch, 8);
+            longBytes = scratch;
+            offset = 0;
         }
-        longBytes[0] = (byte) (longBytes[0] ^ 0x80);
-
-        long value = 0;
-        for (int j = 0; j < longBytes.length; ++j) {
+        long value = (longBytes[offset] ^ 0x80) & 0xff;
+        for (int j = offset + 1; j < offset + 8; ++j) {
             value = (value << 8) + (longBytes[j] & 0xff);
         }
         return value;
@@ -131,14 +186,28 @@ public class MemcmpDecoder extends Decoder {
 
     /**
      * A string is decoded by reading the string as bytes using the readBytes
-     * function.
+     * function. When decoding from a byte array the bytes are copied straight
+     * into old (if it is not null) instead.
      *
+     * @param old A Utf8 instance that may be reused.
      * @return The decoded String.
      */
     @Override
     public Utf8 readString(Utf8 old) throws IOException {
+        if (in == null) {
+            int end = findTerminator();
+            Utf8 result = old != null ? old : new Utf8();
+            result.setByteLength(end - pos - escapedZeros);
+            unescape(result.getBytes(), 0, end);
+            return result;
+        }
         ByteBuffer stringBytes = readBytes(null);
-        return new Utf8(stringBytes.array());
+        if (old == null) {
+            return new Utf8(stringBytes.array());
+        }
+        old.setByteLength(stringBytes.remaining());
+        System.arraycopy(stringBytes.array(), 0, old.getBytes(), 0, stringBytes.remaining());
+        return old;
     }
 
     @Override
@@ -152,17 +221,32 @@ public class MemcmpDecoder extends Decoder {
      */
     @Override
     public void skipString() throws IOException {
-        readString(null);
+        skipBytes();
     }
 
     /**
      * Bytes are decoded by reading each byte until we find two consecutive 0
      * bytes. A 0 byte followed by a 1 byte is translated into a 0 byte.
      *
+     * @param old A ByteBuffer that is reused when decoding from a byte array and it has enough capacity.
      * @return the decoded byte buffer.
      */
     @Override
     public ByteBuffer readBytes(ByteBuffer old) throws IOException {
+        if (in == null) {
+            int end = findTerminator();
+            int length = end - pos - escapedZeros;
+            ByteBuffer result;
+            if (old != null && old.hasArray() && old.capacity() >= length) {
+                result = old;
+                result.clear();
+            } else {
+                result = ByteBuffer.allocate(length);
+            }
+            unescape(result.array(), result.arrayOffset(), end);
+            result.limit(length);
+            return result;
+        }
         ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
         while (true) {
             int byteRead = in.read();
@@ -171,7 +255,7 @@ public class MemcmpDecoder extends Decoder {
             }
             if (byteRead == 0) {
                 int secondByteRead = in.read();
-                if (byteRead < 0) {
+                if (secondByteRead < 0) {
                     throw new EOFException();
                 }
                 if (secondByteRead == 0) {
@@ -193,10 +277,15 @@ public class MemcmpDecoder extends Decoder {
 
     /**
      * To skip bytes, we have to read the bytes, since we aren't length prefixing
-     * the byte array.
+     * the byte array. When decoding from a byte array we only scan for the
+     * terminator.
      */
     public void skipBytes() throws IOException {
-        readBytes(null);
+        if (in == null) {
+            pos = findTerminator() + 2;
+        } else {
+            readBytes(null);
+        }
     }
 
     /**
@@ -209,6 +298,12 @@ public class MemcmpDecoder extends Decoder {
      */
     @Override
     public void readFixed(byte[] bytes, int start, int length) throws IOException {
+        if (in == null) {
+            require(length);
+            System.arraycopy(buf, pos, bytes, start, length);
+            pos += length;
+            return;
+        }
         int i = in.read(bytes, start, length);
         if (i < length) {
             throw new EOFException();
@@ -222,7 +317,12 @@ public class MemcmpDecoder extends Decoder {
      */
     @Override
     public void skipFixed(int length) throws IOException {
-        in.skip(length);
+        if (in == null) {
+            require(length);
+            pos += length;
+        } else {
+            in.skip(length);
+        }
     }
 
     /**
@@ -298,10 +398,93 @@ public class MemcmpDecoder extends Decoder {
      * @return the byte read.
      */
     private byte readByte() throws IOException {
+        if (in == null) {
+            require(1);
+            return buf[pos++];
+        }
         int byteRead = in.read();
         if (byteRead == -1) {
             throw new EOFException();
         }
         return (byte) byteRead;
     }
+
+    /**
+     * Read exactly length bytes from the input stream into bytes.
+     */
+    private void readFully(byte[] bytes, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int i = in.read(bytes, read, length - read);
+            if (i < 0) {
+                throw new EOFException();
+            }
+            read += i;
+        }
+    }
+
+    /**
+     * Make sure there are at least length bytes left in the byte array.
+     */
+    private void require(int length) throws EOFException {
+        if (limit - pos < length) {
+            throw new EOFException();
+        }
+    }
+
+    /**
+     * Scan the byte array from the current position for the 0x00 0x00 marker that
+     * ends a string or bytes value, validating the escaped 0x00 bytes on the way.
+     * The number of escaped bytes is left in escapedZeros.
+     *
+     * @return The index of the first byte of the end marker.
+     */
+    private int findTerminator() throws IOException {
+        int escaped = 0;
+        int i = pos;
+        while (true) {
+            while (i < limit && buf[i] != 0x00) {
+                i++;
+            }
+            if (i + 1 >= limit) {
+                throw new EOFException();
+            }
+            byte next = buf[i + 1];
+            if (next == 0x00) {
+                escapedZeros = escaped;
+                return i;
+            } else if (next == 0x01) {
+                escaped++;
+                i += 2;
+            } else {
+                String msg = "Illegal encoding. 0 byte cannot be followed by "
+                    + "anything other than 0 or 1. It was followed by "
+                    + Integer.toString(next);
+                throw new IOException(msg);
+            }
+        }
+    }
+
+    /**
+     * Copy the value between the current position and the end marker at end into
+     * dest, replacing each escaped 0x00 0x01 pair with 0x00. Moves the position
+     * past the end marker.
+     */
+    private void unescape(byte[] dest, int destOffset, int end) {
+        int d = destOffset;
+        int i = pos;
+        while (i < end) {
+            int runStart = i;
+            while (i < end && buf[i] != 0x00) {
+                i++;
+            }
+            System.arraycopy(buf, runStart, dest, d, i - runStart);
+            d += i - runStart;
+            if (i < end) {
+                dest[d++] = 0x00;
+                i += 2;
+            }
+        }
+        pos = end + 2;
+    }
 }
@@ -6,16 +6,75 @@ import org.apache.avro.util.Utf8;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * A class that will encode Avro types, whose sort order can be determined by a
  * memcmp.
+ * <p>
+ * The encoder can either write through to an OutputStream, or (when constructed
+ * without one) accumulate the encoded bytes in an internal growable buffer. The
+ * buffer-backed mode is meant to be reused: call {@link #reset()} before
+ * encoding a new value and {@link #toByteArray()} to get the encoded bytes,
+ * which is then the only allocation made per encoded value.
  */
 public class MemcmpEncoder extends Encoder {
-    private OutputStream out;
+    private static final int DEFAULT_CAPACITY = 64;
+    private static final byte[] ESCAPED_ZERO = new byte[]{0x00, 0x01};
+    private static final byte[] TERMINATOR = new byte[]{0x00, 0x00};
+
+    private final OutputStream out;
+    private byte[] buf;
+    private int count;
 
     public MemcmpEncoder(OutputStream out) {
         this.out = out;
+        // only used to stage fixed width values before they are written to out
+        this.buf = new byte[8];
+    }
+
+    /**
+     * Construct a buffer-backed encoder with the default initial capacity.
+     */
+    public MemcmpEncoder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Construct a buffer-backed encoder.
+     *
+     * @param initialCapacity The initial size of the internal buffer. It grows as needed.
+     */
+    public MemcmpEncoder(int initialCapacity) {
+        this.out = null;
+        this.buf = new byte[initialCapacity];
+    }
+
+    /**
+     * Discard everything encoded so far so that the internal buffer can be
+     * reused for the next value.
+     */
+    public void reset() {
+        count = 0;
+    }
+
+    /**
+     * @return The number of bytes encoded since the last reset.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Copy the bytes encoded since the last reset into a new array.
+     *
+     * @return The encoded bytes.
+     */
+    public byte[] toByteArray() {
+        if (out != null) {
+            throw new IllegalStateException("Encoder writes to an OutputStream and has no buffered bytes.");
+        }
+        return Arrays.copyOf(buf, count);
     }
 
     @Override
@@ -36,7 +95,7 @@ public class MemcmpEncoder extends Encoder {
      */
     @Override
     public void writeBoolean(boolean b) throws IOException {
-        out.write(b ? 1 : 0);
+        writeByte(b ? 1 : 0);
     }
 
     /**
@@ -47,12 +106,12 @@ public class MemcmpEncoder extends Encoder {
      */
     @Override
     public void writeInt(int n) throws IOException {
-        byte[] intBytes = new byte[]{
-            (byte) ((n >>> 24) ^ 0x80),
-            (byte) (n >>> 16),
-            (byte) (n >>> 8),
-            (byte) n};
-        out.write(intBytes);
+        ensureCapacity(4);
+        buf[count++] = (byte) ((n >>> 24) ^ 0x80);
+        buf[count++] = (byte) (n >>> 16);
+        buf[count++] = (byte) (n >>> 8);
+        buf[count++] = (byte) n;
+        commit();
     }
 
     /**
@@ -63,16 +122,16 @@ public class MemcmpEncoder extends Encoder {
      */
     @Override
     public void writeLong(long n) throws IOException {
-        byte[] intBytes = new byte[]{
-            (byte) ((n >>> 56) ^ 0x80),
-            (byte) (n >>> 48),
-            (byte) (n >>> 40),
-            (byte) (n >>> 32),
-            (byte) (n >>> 24),
-            (byte) (n >>> 16),
-            (byte) (n >>> 8),
-            (byte) n};
-        out.write(intBytes);
+        ensureCapacity(8);
+        buf[count++] = (byte) ((n >>> 56) ^ 0x80);
+        buf[count++] = (byte) (n >>> 48);
+        buf[count++] = (byte) (n >>> 40);
+        buf[count++] = (byte) (n >>> 32);
+        buf[count++] = (byte) (n >>> 24);
+        buf[count++] = (byte) (n >>> 16);
+        buf[count++] = (byte) (n >>> 8);
+        buf[count++] = (byte) n;
+        commit();
     }
 
     /**
@@ -129,7 +188,7 @@ public class MemcmpEncoder extends Encoder {
      */
     @Override
     public void writeFixed(byte[] bytes, int start, int len) throws IOException {
-        out.write(bytes, start, len);
+        writeRaw(bytes, start, len);
     }
 
     /**
@@ -150,6 +209,8 @@ public class MemcmpEncoder extends Encoder {
      * of value 0x00. Bytes of value 0x00 are encoded as two bytes, 0x00 0x01. The
      * end marker is signified by two 0x00 bytes. This guarantees that the end
      * marker is the least possible value.
+     * <p>
+     * The runs of bytes between 0x00 bytes are copied in bulk.
      *
      * @param bytes The bytes to encode.
      * @param start The start of the byte array to encode.
@@ -157,16 +218,17 @@ public class MemcmpEncoder extends Encoder {
      */
     @Override
     public void writeBytes(byte[] bytes, int start, int len) throws IOException {
-        for (int i = start; i < start + len; ++i) {
+        int end = start + len;
+        int runStart = start;
+        for (int i = start; i < end; ++i) {
             if (bytes[i] == 0x00) {
-                out.write(0);
-                out.write(1);
-            } else {
-                out.write((int) bytes[i]);
+                writeRaw(bytes, runStart, i - runStart);
+                writeRaw(ESCAPED_ZERO, 0, 2);
+                runStart = i + 1;
             }
         }
-        out.write(0);
-        out.write(0);
+        writeRaw(bytes, runStart, end - runStart);
+        writeRaw(TERMINATOR, 0, 2);
     }
 
     /**
@@ -192,7 +254,7 @@ public class MemcmpEncoder extends Encoder {
      */
     @Override
     public void startItem() throws IOException {
-        out.write(1);
+        writeByte(1);
     }
 
     /**
@@ -200,7 +262,7 @@ public class MemcmpEncoder extends Encoder {
      */
     @Override
     public void writeArrayEnd() throws IOException {
-        out.write(0);
+        writeByte(0);
     }
 
     /**
@@ -230,4 +292,50 @@ public class MemcmpEncoder extends Encoder {
     public void writeIndex(int unionIndex) throws IOException {
         writeInt(unionIndex);
     }
+
+    /**
+     * Write a single byte.
+     *
+     * @param b The byte to write.
+     */
+    private void writeByte(int b) throws IOException {
+        ensureCapacity(1);
+        buf[count++] = (byte) b;
+        commit();
+    }
+
+    /**
+     * Write a range of bytes as they are, either to the OutputStream or to the
+     * internal buffer.
+     */
+    private void writeRaw(byte[] bytes, int start, int len) throws IOException {
+        if (len == 0) {
+            return;
+        }
+        if (out != null) {
+            out.write(bytes, start, len);
+        } else {
+            ensureCapacity(len);
+            System.arraycopy(bytes, start, buf, count, len);
+            count += len;
+        }
+    }
+
+    /**
+     * When writing to an OutputStream, pass on the bytes staged in the internal
+     * buffer. A buffer-backed encoder keeps them.
+     */
+    private void commit() throws IOException {
+        if (out != null) {
+            out.write(buf, 0, count);
+            count = 0;
+        }
+    }
+
+    private void ensureCapacity(int extra) {
+        int required = count + extra;
+        if (required > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length << 1, required));
+        }
+    }
 }
@@ -0,0 +1,282 @@
+package com.brightcove.rna.bigtable.avro.io;
+
+import org.apache.avro.Schema;
+import org.apache.avro.util.Utf8;
+import org.apache.commons.lang.SerializationException;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+/**
+ * Converts the values of int, long and string columns, and of unions of one of
+ * those types with null, straight to and from the bytes stored in the column.
+ * <p>
+ * The bytes are exactly the ones the column serialization would otherwise
+ * produce through a DatumWriter: ints, longs and strings are written the way
+ * ColumnEncoder writes them, and nullable unions the way Avro's BinaryEncoder
+ * writes them (a zig-zag varint union index followed by the binary encoded
+ * value). No streams, encoders or intermediate buffers are involved.
+ */
+public abstract class PrimitiveColumnCodec {
+
+    /**
+     * The schema property that tells Avro to represent a string as java.lang.String instead of Utf8.
+     */
+    private static final String STRING_PROP = "avro.java.string";
+
+    /**
+     * Get the codec for values of a column schema.
+     *
+     * @param schema The schema of the column value.
+     * @return The codec, or null if the schema isn't one this class handles.
+     */
+    public static PrimitiveColumnCodec forSchema(Schema schema) {
+        switch (schema.getType()) {
+            case INT:
+                return new IntCodec();
+            case LONG:
+                return new LongCodec();
+            case STRING:
+                return new StringCodec(isJavaString(schema));
+            case UNION:
+                List<Schema> branches = schema.getTypes();
+                if (branches.size() != 2) {
+                    return null;
+                }
+                int nullIndex;
+                if (branches.get(0).getType() == Schema.Type.NULL) {
+                    nullIndex = 0;
+                } else if (branches.get(1).getType() == Schema.Type.NULL) {
+                    nullIndex = 1;
+                } else {
+                    return null;
+                }
+                Schema valueSchema = branches.get(1 - nullIndex);
+                Schema.Type valueType = valueSchema.getType();
+                if (valueType != Schema.Type.INT && valueType != Schema.Type.LONG && valueType != Schema.Type.STRING) {
+                    return null;
+                }
+                return new NullableCodec(nullIndex, valueType, isJavaString(valueSchema));
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Encode a value to the bytes stored in the column.
+     *
+     * @param value The value to encode.
+     * @return The encoded bytes.
+     */
+    public abstract byte[] encode(Object value);
+
+    /**
+     * Decode a value from the bytes stored in a column. The returned value may
+     * share the given array, which must not be modified afterwards.
+     *
+     * @param bytes The column bytes.
+     * @return The decoded value.
+     */
+    public Object decode(byte[] bytes) {
+        return decode(bytes, 0, bytes.length, true);
+    }
+
+    /**
+     * Decode a value from a slice of an array holding the bytes stored in a
+     * column. The returned value never shares the array.
+     *
+     * @param bytes  The array holding the column bytes.
+     * @param offset The index of the first byte of the column value.
+     * @param length The length of the column value.
+     * @return The decoded value.
+     */
+    public Object decode(byte[] bytes, int offset, int length) {
+        return decode(bytes, offset, length, false);
+    }
+
+    abstract Object decode(byte[] bytes, int offset, int length, boolean ownsBytes);
+
+    private static boolean isJavaString(Schema schema) {
+        return "String".equals(schema.getProp(STRING_PROP));
+    }
+
+    private static void checkLength(int length, int required) {
+        if (length < required) {
+            throw new SerializationException("Column value too short: expected " + required + " bytes, found " + length);
+        }
+    }
+
+    private static byte[] stringBytes(Object value) {
+        if (value instanceof Utf8) {
+            Utf8 utf8 = (Utf8) value;
+            return Arrays.copyOf(utf8.getBytes(), utf8.getByteLength());
+        }
+        return value.toString().getBytes(UTF_8);
+    }
+
+    private static Object decodeString(byte[] bytes, int offset, int length, boolean ownsBytes, boolean javaString) {
+        if (javaString) {
+            return new String(bytes, offset, length, UTF_8);
+        }
+        if (ownsBytes && offset == 0 && length == bytes.length) {
+            return new Utf8(bytes);
+        }
+        return new Utf8(Arrays.copyOfRange(bytes, offset, offset + length));
+    }
+
+    private static final class IntCodec extends PrimitiveColumnCodec {
+        @Override
+        public byte[] encode(Object value) {
+            return Bytes.toBytes(((Number) value).intValue());
+        }
+
+        @Override
+        Object decode(byte[] bytes, int offset, int length, boolean ownsBytes) {
+            checkLength(length, Bytes.SIZEOF_INT);
+            return Bytes.toInt(bytes, offset);
+        }
+    }
+
+    private static final class LongCodec extends PrimitiveColumnCodec {
+        @Override
+        public byte[] encode(Object value) {
+            return Bytes.toBytes(((Number) value).longValue());
+        }
+
+        @Override
+        Object decode(byte[] bytes, int offset, int length, boolean ownsBytes) {
+            checkLength(length, Bytes.SIZEOF_LONG);
+            return Bytes.toLong(bytes, offset);
+        }
+    }
+
+    private static final class StringCodec extends PrimitiveColumnCodec {
+        private final boolean javaString;
+
+        StringCodec(boolean javaString) {
+            this.javaString = javaString;
+        }
+
+        @Override
+        public byte[] encode(Object value) {
+            return stringBytes(value);
+        }
+
+        @Override
+        Object decode(byte[] bytes, int offset, int length, boolean ownsBytes) {
+            return decodeString(bytes, offset, length, ownsBytes, javaString);
+        }
+    }
+
+    /**
+     * A union of null and an int, long or string, in Avro's binary encoding.
+     */
+    private static final class NullableCodec extends PrimitiveColumnCodec {
+        private final int nullIndex;
+        private final Schema.Type valueType;
+        private final boolean javaString;
+
+        NullableCodec(int nullIndex, Schema.Type valueType, boolean javaString) {
+            this.nullIndex = nullIndex;
+            this.valueType = valueType;
+            this.javaString = javaString;
+        }
+
+        @Override
+        public byte[] encode(Object value) {
+            if (value == null) {
+                byte[] bytes = new byte[1];
+                writeVarLong(zigZag(nullIndex), bytes, 0);
+                return bytes;
+            }
+            long index = zigZag(1 - nullIndex);
+            switch (valueType) {
+                case INT:
+                case LONG: {
+                    long n = zigZag(((Number) value).longValue());
+                    byte[] bytes = new byte[varLongSize(index) + varLongSize(n)];
+                    writeVarLong(n, bytes, writeVarLong(index, bytes, 0));
+                    return bytes;
+                }
+                default: {
+                    byte[] string = stringBytes(value);
+                    long length = zigZag(string.length);
+                    byte[] bytes = new byte[varLongSize(index) + varLongSize(length) + string.length];
+                    int pos = writeVarLong(length, bytes, writeVarLong(index, bytes, 0));
+                    System.arraycopy(string, 0, bytes, pos, string.length);
+                    return bytes;
+                }
+            }
+        }
+
+        @Override
+        Object decode(byte[] bytes, int offset, int length, boolean ownsBytes) {
+            int end = offset + length;
+            long index = readVarLong(bytes, offset, end);
+            int pos = offset + varLongSize(index);
+            if (unZigZag(index) == nullIndex) {
+                return null;
+            }
+            long n = readVarLong(bytes, pos, end);
+            switch (valueType) {
+                case INT:
+                    return (int) unZigZag(n);
+                case LONG:
+                    return unZigZag(n);
+                default:
+                    int stringLength = (int) unZigZag(n);
+                    pos += varLongSize(n);
+                    checkLength(end - pos, stringLength);
+                    return decodeString(bytes, pos, stringLength, false, javaString);
+            }
+        }
+    }
+
+    private static long zigZag(long n) {
+        return (n << 1) ^ (n >> 63);
+    }
+
+    private static long unZigZag(long n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    private static int varLongSize(long n) {
+        int size = 1;
+        while ((n & ~0x7FL) != 0) {
+            n >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * @return The index following the written varint.
+     */
+    private static int writeVarLong(long n, byte[] bytes, int pos) {
+        while ((n & ~0x7FL) != 0) {
+            bytes[pos++] = (byte) ((n & 0x7F) | 0x80);
+            n >>>= 7;
+        }
+        bytes[pos++] = (byte) n;
+        return pos;
+    }
+
+    private static long readVarLong(byte[] bytes, int pos, int end) {
+        long n = 0;
+        int shift = 0;
+        while (true) {
+            if (pos >= end || shift > 63) {
+                throw new SerializationException("Invalid varint in column value");
+            }
+            byte b = bytes[pos++];
+            n |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return n;
+            }
+            shift += 7;
+        }
+    }
+}
@@ -81,7 +81,7 @@ public class EntitySchema {
                 if(fm.mappingType() == COLUMN || fm.mappingType() == COUNTER) {
                     return fm.mappingValue();
                 } else if(fm.mappingType() == KEY_AS_COLUMN) {
-                    return fm.mappingValue().split(":", 1)[0] + ":";
+                    return fm.mappingValue().split(":", 2)[0] + ":";
                 }
                 return null;
             })
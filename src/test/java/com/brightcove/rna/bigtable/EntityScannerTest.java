@@ -0,0 +1,210 @@
+package com.brightcove.rna.bigtable;
+
+import com.brightcove.rna.bigtable.avro.AvroEntityComposer;
+import com.brightcove.rna.bigtable.avro.AvroEntityMapper;
+import com.brightcove.rna.bigtable.avro.AvroEntitySchema;
+import com.brightcove.rna.bigtable.avro.AvroEntitySerDe;
+import com.brightcove.rna.bigtable.avro.AvroKeyEntitySchemaParser;
+import com.brightcove.rna.bigtable.avro.AvroKeySchema;
+import com.brightcove.rna.bigtable.avro.AvroKeySerDe;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class EntityScannerTest {
+    private static final String SCHEMA = "{\n" +
+        "    \"name\": \"test\",\n" +
+        "    \"type\": \"record\",\n" +
+        "    \"fields\": [\n" +
+        "        { \"name\": \"id\", \"type\": \"int\", \"mapping\": { \"type\": \"key\", \"value\": \"0\" } },\n" +
+        "        { \"name\": \"count\", \"type\": \"int\", \"mapping\": { \"type\": \"column\", \"value\": \"meta:count\" } }\n" +
+        "    ]\n" +
+        "}";
+
+    private final Schema schema;
+    private final AvroEntityMapper<GenericRecord> entityMapper;
+
+    public EntityScannerTest() {
+        AvroKeyEntitySchemaParser parser = new AvroKeyEntitySchemaParser();
+        AvroKeySchema keySchema = parser.parseKeySchema(SCHEMA);
+        AvroEntitySchema entitySchema = parser.parseEntitySchema(SCHEMA);
+        schema = entitySchema.getAvroSchema();
+        entityMapper = new AvroEntityMapper<>(keySchema, entitySchema, new AvroKeySerDe(keySchema.getAvroSchema()),
+            new AvroEntitySerDe<>(new AvroEntityComposer<>(entitySchema, false), entitySchema, false));
+    }
+
+    @Test
+    public void testScanMapsEveryRowInOrder() {
+        InMemoryScanner scanner = new InMemoryScanner(results(25), -1);
+        EntityScanner<GenericRecord> entityScanner = new EntityScanner<>(scanner, entityMapper, 4, 2);
+
+        List<Integer> ids = entityScanner.stream().map(entity -> (Integer) entity.get("id")).collect(Collectors.toList());
+
+        assertEquals(25, ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            assertEquals(i, (int) ids.get(i));
+        }
+        assertEquals(25, entityScanner.getResultsFetched());
+        assertEquals(7, entityScanner.getBatchesFetched());
+        assertEquals(25, entityScanner.getEntitiesMapped());
+        assertTrue(entityScanner.getDecodeNanos() > 0);
+        assertTrue(scanner.closed);
+    }
+
+    @Test
+    public void testEmptyRowsAreSkipped() {
+        List<Result> results = new ArrayList<>(results(3));
+        results.add(1, Result.create(new Cell[0]));
+        EntityScanner<GenericRecord> entityScanner = new EntityScanner<>(new InMemoryScanner(results, -1), entityMapper);
+
+        assertEquals(3, entityScanner.stream().count());
+    }
+
+    @Test
+    public void testFetchFailureIsThrown() {
+        InMemoryScanner scanner = new InMemoryScanner(results(10), 6);
+        Iterator<GenericRecord> iterator = new EntityScanner<>(scanner, entityMapper, 3, 1).iterator();
+
+        int read = 0;
+        try {
+            while (iterator.hasNext()) {
+                iterator.next();
+                read++;
+            }
+            fail("expected the scanner failure to be thrown");
+        } catch (UncheckedIOException e) {
+            assertEquals("scanner failed", e.getCause().getMessage());
+        }
+        assertEquals(6, read);
+        assertTrue(scanner.closed);
+    }
+
+    @Test
+    public void testCloseStopsPrefetching() throws Exception {
+        InMemoryScanner scanner = new InMemoryScanner(results(1000), -1);
+        EntityScanner<GenericRecord> entityScanner = new EntityScanner<>(scanner, entityMapper, 10, 2);
+        Iterator<GenericRecord> iterator = entityScanner.iterator();
+        assertTrue(iterator.hasNext());
+        iterator.next();
+
+        entityScanner.close();
+        for (int i = 0; i < 100 && !scanner.closed; i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(scanner.closed);
+        // at most the batch being mapped, the queued ones and the one being put were fetched
+        assertTrue(entityScanner.getResultsFetched() <= 40);
+    }
+
+    @Test(timeout = 10000)
+    public void testCloseWakesUpWaitingIterator() throws Exception {
+        // a scanner that only returns once the prefetch thread is interrupted
+        InMemoryScanner scanner = new InMemoryScanner(results(10), -1) {
+            @Override
+            public Result[] next(int nbRows) throws IOException {
+                while (!Thread.currentThread().isInterrupted()) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                }
+                return super.next(nbRows);
+            }
+        };
+        EntityScanner<GenericRecord> entityScanner = new EntityScanner<>(scanner, entityMapper, 10, 1);
+        Iterator<GenericRecord> iterator = entityScanner.iterator();
+        Thread closing = new Thread(() -> {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(50));
+            entityScanner.close();
+        });
+        closing.start();
+
+        assertFalse(iterator.hasNext());
+        closing.join();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testIteratesOnce() {
+        EntityScanner<GenericRecord> entityScanner = new EntityScanner<>(new InMemoryScanner(results(1), -1), entityMapper);
+        entityScanner.iterator();
+        entityScanner.iterator();
+    }
+
+    private List<Result> results(int count) {
+        List<Result> results = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            GenericRecord record = new GenericData.Record(schema);
+            record.put("id", i);
+            record.put("count", i * 10);
+            Put put = entityMapper.mapFromEntity(record);
+            List<Cell> cells = new ArrayList<>();
+            put.getFamilyCellMap().values().forEach(cells::addAll);
+            cells.sort(KeyValue.COMPARATOR);
+            results.add(Result.create(cells));
+        }
+        return results;
+    }
+
+    /**
+     * A ResultScanner over a list of results, which fails once a given number of results was returned.
+     */
+    private static class InMemoryScanner implements ResultScanner {
+        private final List<Result> results;
+        private final int failAfter;
+        private int position;
+        volatile boolean closed;
+
+        InMemoryScanner(List<Result> results, int failAfter) {
+            this.results = results;
+            this.failAfter = failAfter;
+        }
+
+        @Override
+        public Result next() throws IOException {
+            Result[] next = next(1);
+            return next.length == 0 ? null : next[0];
+        }
+
+        @Override
+        public Result[] next(int nbRows) throws IOException {
+            if (failAfter >= 0 && position >= failAfter) {
+                throw new IOException("scanner failed");
+            }
+            int end = Math.min(results.size(), position + nbRows);
+            if (failAfter >= 0) {
+                end = Math.min(end, failAfter);
+            }
+            Result[] batch = results.subList(position, end).toArray(new Result[end - position]);
+            position = end;
+            return batch;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        @Override
+        public Iterator<Result> iterator() {
+            return Arrays.asList(results.toArray(new Result[0])).iterator();
+        }
+    }
+}
@@ -0,0 +1,421 @@
+package com.brightcove.rna.bigtable;
+
+import com.brightcove.rna.bigtable.avro.AvroEntityComposer;
+import com.brightcove.rna.bigtable.avro.AvroEntityMapper;
+import com.brightcove.rna.bigtable.avro.AvroEntitySchema;
+import com.brightcove.rna.bigtable.avro.AvroEntitySerDe;
+import com.brightcove.rna.bigtable.avro.AvroKeyEntitySchemaParser;
+import com.brightcove.rna.bigtable.avro.AvroKeySchema;
+import com.brightcove.rna.bigtable.avro.AvroKeySerDe;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.hadoop.hbase.client.Mutation;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class EntityWriterTest {
+    private static final String SCHEMA = "{\n" +
+        "    \"name\": \"test\",\n" +
+        "    \"type\": \"record\",\n" +
+        "    \"fields\": [\n" +
+        "        { \"name\": \"id\", \"type\": \"int\", \"mapping\": { \"type\": \"key\", \"value\": \"0\" } },\n" +
+        "        { \"name\": \"count\", \"type\": \"int\", \"mapping\": { \"type\": \"column\", \"value\": \"meta:count\" } }\n" +
+        "    ]\n" +
+        "}";
+
+    private final Schema schema;
+    private final AvroEntityMapper<GenericRecord> entityMapper;
+
+    public EntityWriterTest() {
+        AvroKeyEntitySchemaParser parser = new AvroKeyEntitySchemaParser();
+        AvroKeySchema keySchema = parser.parseKeySchema(SCHEMA);
+        AvroEntitySchema entitySchema = parser.parseEntitySchema(SCHEMA);
+        schema = entitySchema.getAvroSchema();
+        entityMapper = new AvroEntityMapper<>(keySchema, entitySchema, new AvroKeySerDe(keySchema.getAvroSchema()),
+            new AvroEntitySerDe<>(new AvroEntityComposer<>(entitySchema, false), entitySchema, false));
+    }
+
+    @Test
+    public void testEntitiesAreWrittenInBatches() throws IOException {
+        InMemorySink sink = new InMemorySink();
+        EntityWriter<GenericRecord> writer = EntityWriter.builder(entityMapper, sink)
+            .withMaxBatchSize(10)
+            .withMappingThreads(4)
+            .build();
+
+        for (int i = 0; i < 95; i++) {
+            writer.write(entity(i));
+        }
+        writer.close();
+
+        assertEquals(95, sink.rows().size());
+        assertEquals(95, writer.getMutationsWritten());
+        assertTrue(writer.getBatchesWritten() >= 10);
+        for (List<Mutation> batch : sink.batches) {
+            assertTrue(batch.size() <= 10);
+        }
+        assertTrue(writer.getBytesWritten() > 0);
+        assertEquals(0, writer.getInFlightBytes());
+        assertTrue(sink.flushed);
+        assertTrue(sink.closed);
+    }
+
+    @Test
+    public void testBatchesAreBoundedByBytes() throws IOException {
+        InMemorySink sink = new InMemorySink();
+        long putSize = entityMapper.mapFromEntity(entity(0)).heapSize();
+        EntityWriter<GenericRecord> writer = EntityWriter.builder(entityMapper, sink)
+            .withMaxBatchBytes(putSize * 3)
+            .withMappingThreads(0)
+            .build();
+
+        for (int i = 0; i < 9; i++) {
+            writer.write(entity(i));
+        }
+        writer.flush();
+
+        assertEquals(3, sink.batches.size());
+        // with the writing thread mapping, the order is kept
+        List<Integer> rows = sink.rows();
+        for (int i = 0; i < rows.size(); i++) {
+            assertEquals(i, (int) rows.get(i));
+        }
+        writer.close();
+    }
+
+    @Test
+    public void testIncompleteBatchIsWrittenAfterInterval() throws Exception {
+        InMemorySink sink = new InMemorySink();
+        EntityWriter<GenericRecord> writer = EntityWriter.builder(entityMapper, sink)
+            .withFlushInterval(20, TimeUnit.MILLISECONDS)
+            .build();
+
+        writer.write(entity(1));
+        for (int i = 0; i < 200 && sink.rows().isEmpty(); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, sink.rows().size());
+        writer.close();
+    }
+
+    @Test
+    public void testWritesBlockAboveInFlightLimit() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        InMemorySink sink = new InMemorySink() {
+            @Override
+            public void write(List<? extends Mutation> mutations) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                super.write(mutations);
+            }
+        };
+        long putSize = entityMapper.mapFromEntity(entity(0)).heapSize();
+        EntityWriter<GenericRecord> writer = EntityWriter.builder(entityMapper, sink)
+            .withMaxBatchSize(1)
+            .withMaxBatchBytes(putSize)
+            .withMaxInFlightBytes(putSize * 2)
+            .withMappingThreads(0)
+            .build();
+
+        writer.write(entity(0));
+        writer.write(entity(1));
+        Thread blocked = new Thread(() -> {
+            try {
+                writer.write(entity(2));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        blocked.start();
+        blocked.join(100);
+        assertTrue("the third write should wait for the sink", blocked.isAlive());
+        assertEquals(putSize * 2, writer.getInFlightBytes());
+
+        release.countDown();
+        blocked.join(5000);
+        assertFalse(blocked.isAlive());
+        writer.close();
+        assertEquals(3, sink.rows().size());
+        assertTrue(writer.getBlockedNanos() > 0);
+    }
+
+    @Test
+    public void testSinkFailureIsThrown() throws Exception {
+        InMemorySink sink = new InMemorySink() {
+            @Override
+            public void write(List<? extends Mutation> mutations) throws IOException {
+                throw new IOException("sink failed");
+            }
+        };
+        EntityWriter<GenericRecord> writer = EntityWriter.builder(entityMapper, sink)
+            .withMaxBatchSize(2)
+            .build();
+
+        writer.write(entity(0));
+        writer.write(entity(1));
+        try {
+            writer.flush();
+            fail("expected the sink failure to be thrown");
+        } catch (IOException e) {
+            assertEquals("sink failed", e.getCause().getMessage());
+        }
+        try {
+            writer.write(entity(2));
+            fail("expected the writer to stay failed");
+        } catch (IOException e) {
+            assertEquals("sink failed", e.getCause().getMessage());
+        }
+        try {
+            writer.close();
+            fail("expected close to throw the failure");
+        } catch (IOException e) {
+            assertTrue(sink.closed);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testMapperErrorIsThrown() throws Exception {
+        AvroKeyEntitySchemaParser parser = new AvroKeyEntitySchemaParser();
+        AvroKeySchema keySchema = parser.parseKeySchema(SCHEMA);
+        AvroEntitySchema entitySchema = parser.parseEntitySchema(SCHEMA);
+        AvroEntityMapper<GenericRecord> failingMapper = new AvroEntityMapper<GenericRecord>(keySchema, entitySchema,
+            new AvroKeySerDe(keySchema.getAvroSchema()),
+            new AvroEntitySerDe<>(new AvroEntityComposer<>(entitySchema, false), entitySchema, false)) {
+            @Override
+            public Put mapFromEntity(GenericRecord entity) {
+                if ((int) entity.get("id") == 1) {
+                    throw new AssertionError("mapper failed");
+                }
+                return super.mapFromEntity(entity);
+            }
+        };
+        InMemorySink sink = new InMemorySink();
+        EntityWriter<GenericRecord> writer = EntityWriter.builder(failingMapper, sink)
+            .withMappingThreads(2)
+            .build();
+
+        for (int i = 0; i < 3; i++) {
+            writer.write(entity(i));
+        }
+        try {
+            writer.flush();
+            fail("expected the mapper failure to be thrown");
+        } catch (IOException e) {
+            assertEquals("mapper failed", e.getCause().getCause().getMessage());
+        }
+        try {
+            writer.close();
+            fail("expected close to throw the failure");
+        } catch (IOException e) {
+            assertTrue(sink.closed);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testWritesRacingWithCloseAreWrittenOrRejected() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        InMemorySink sink = new InMemorySink() {
+            @Override
+            public void write(List<? extends Mutation> mutations) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                super.write(mutations);
+            }
+        };
+        EntityWriter<GenericRecord> writer = EntityWriter.builder(entityMapper, sink)
+            .withMaxBatchSize(1)
+            .withMappingThreads(0)
+            .build();
+
+        writer.write(entity(0));
+        Thread closer = new Thread(() -> {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        closer.start();
+        // the final flush waits for the sink, so the writer has to reject writes before it
+        int accepted = 1;
+        while (true) {
+            try {
+                writer.write(entity(accepted));
+                accepted++;
+            } catch (IllegalStateException e) {
+                break;
+            }
+        }
+        release.countDown();
+        closer.join(5000);
+
+        assertFalse(closer.isAlive());
+        assertEquals(accepted, sink.rows().size());
+        assertTrue(sink.closed);
+    }
+
+    @Test(timeout = 10000)
+    public void testSinkIsCalledByOneThreadAtATime() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        AtomicBoolean overlapped = new AtomicBoolean();
+        InMemorySink sink = new InMemorySink() {
+            @Override
+            public void write(List<? extends Mutation> mutations) throws IOException {
+                enter();
+                super.write(mutations);
+            }
+
+            @Override
+            public void flush() {
+                enter();
+                super.flush();
+            }
+
+            private void enter() {
+                if (calls.incrementAndGet() > 1) {
+                    overlapped.set(true);
+                }
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+                calls.decrementAndGet();
+            }
+        };
+        EntityWriter<GenericRecord> writer = EntityWriter.builder(entityMapper, sink)
+            .withMaxBatchSize(1)
+            .withMappingThreads(0)
+            .build();
+
+        Thread flushing = new Thread(() -> {
+            try {
+                for (int i = 0; i < 100; i++) {
+                    writer.flush();
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        flushing.start();
+        for (int i = 0; i < 200; i++) {
+            writer.write(entity(i));
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(200));
+        }
+        flushing.join();
+        writer.close();
+
+        assertFalse(overlapped.get());
+        assertEquals(200, sink.rows().size());
+    }
+
+    @Test(timeout = 10000)
+    public void testFlushDoesNotWaitForLaterWrites() throws Exception {
+        InMemorySink sink = new InMemorySink();
+        EntityWriter<GenericRecord> writer = EntityWriter.builder(entityMapper, sink)
+            .withMaxBatchSize(10)
+            .withMappingThreads(4)
+            .withFlushInterval(1, TimeUnit.HOURS)
+            .build();
+
+        for (int i = 0; i < 50; i++) {
+            writer.write(entity(i));
+        }
+        // a producer that never stops writing while the flush waits
+        AtomicBoolean stop = new AtomicBoolean();
+        CountDownLatch writing = new CountDownLatch(1);
+        Thread producer = new Thread(() -> {
+            try {
+                for (int i = 50; !stop.get(); i++) {
+                    writer.write(entity(i));
+                    writing.countDown();
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        producer.start();
+        writing.await();
+        writer.flush();
+        stop.set(true);
+        producer.join();
+
+        Set<Integer> rows = new HashSet<>(sink.rows());
+        for (int i = 0; i < 50; i++) {
+            assertTrue(rows.contains(i));
+        }
+        writer.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInFlightLimitCoversABatch() {
+        EntityWriter.builder(entityMapper, new InMemorySink())
+            .withMaxBatchBytes(1024)
+            .withMaxInFlightBytes(512)
+            .build();
+    }
+
+    private GenericRecord entity(int id) {
+        GenericRecord record = new GenericData.Record(schema);
+        record.put("id", id);
+        record.put("count", id * 10);
+        return record;
+    }
+
+    /**
+     * A sink that keeps the batches written to it.
+     */
+    private static class InMemorySink implements MutationSink {
+        final List<List<Mutation>> batches = new ArrayList<>();
+        volatile boolean flushed;
+        volatile boolean closed;
+
+        @Override
+        public synchronized void write(List<? extends Mutation> mutations) throws IOException {
+            batches.add(new ArrayList<>(mutations));
+        }
+
+        @Override
+        public void flush() {
+            flushed = true;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        synchronized List<Integer> rows() {
+            List<Integer> rows = new ArrayList<>();
+            Set<Integer> unique = new HashSet<>();
+            for (List<Mutation> batch : batches) {
+                for (Mutation mutation : batch) {
+                    int row = Bytes.toInt(mutation.getRow()) ^ Integer.MIN_VALUE;
+                    assertTrue(unique.add(row));
+                    rows.add(row);
+                }
+            }
+            return rows;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.brightcove.rna.bigtable.avro;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.util.Utf8;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.client.Put;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.brightcove.rna.bigtable.avro.TestResults.sortedCells;
+import static com.brightcove.rna.bigtable.avro.TestResults.toResult;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Shares one mapper between many threads and checks that every thread produces exactly the output a single
+ * thread produces.
+ */
+public class AvroEntityMapperConcurrencyTest {
+    private static final int THREADS = 8;
+    private static final int ITERATIONS = 200;
+
+    private static final AvroKeyEntitySchemaParser schemaParser = new AvroKeyEntitySchemaParser();
+    private static final String schemaString = "{ \n" +
+        "    \"name\": \"test\",\n" +
+        "    \"type\": \"record\",\n" +
+        "    \"fields\": [\n" +
+        "        { \"name\": \"account\", \"type\": \"string\", \"mapping\": { \"type\": \"key\", \"value\": \"0\" } },\n" +
+        "        { \"name\": \"id\", \"type\": \"long\", \"mapping\": { \"type\": \"key\", \"value\": \"1\" } },\n" +
+        "        { \"name\": \"name\", \"type\": [\"null\", \"string\"], \"mapping\": { \"type\": \"column\", \"value\": \"meta:name\" } },\n" +
+        "        { \"name\": \"score\", \"type\": \"double\", \"mapping\": { \"type\": \"column\", \"value\": \"meta:score\" } },\n" +
+        "        { \"name\": \"tags\", \"type\": { \"type\": \"map\", \"values\": \"string\" }, \"mapping\": { \"type\": \"keyAsColumn\", \"value\": \"tags\"} },\n" +
+        "        { \"name\": \"stats\", \"type\": {\n" +
+        "            \"type\": \"record\",\n" +
+        "            \"name\": \"stats\",\n" +
+        "            \"fields\": [\n" +
+        "                { \"name\": \"plays\", \"type\": \"long\" },\n" +
+        "                { \"name\": \"label\", \"type\": \"string\" }\n" +
+        "            ]},\n" +
+        "            \"mapping\": { \"type\": \"keyAsColumn\", \"value\": \"stats:\"}\n" +
+        "        }\n" +
+        "    ]\n" +
+        "}";
+
+    private final Schema schema = new Schema.Parser().parse(schemaString);
+
+    @Test
+    public void testSharedMapperUnderContention() throws Exception {
+        AvroKeySchema keySchema = schemaParser.parseKeySchema(schemaString);
+        AvroEntitySchema entitySchema = schemaParser.parseEntitySchema(schemaString);
+        AvroKeySerDe keySerDe = new AvroKeySerDe(keySchema.getAvroSchema(), entitySchema.getAvroSchema());
+        AvroEntitySerDe<GenericRecord> entitySerDe = new AvroEntitySerDe<>(new AvroEntityComposer<>(entitySchema, false), entitySchema, false);
+        AvroEntityMapper<GenericRecord> mapper = new AvroEntityMapper<>(keySchema, entitySchema, keySerDe, entitySerDe);
+
+        List<GenericRecord> records = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            records.add(newRecord(i));
+        }
+        // the expected output, computed by a single thread
+        List<Put> expectedPuts = new ArrayList<>();
+        List<GenericRecord> expectedEntities = new ArrayList<>();
+        for (GenericRecord record : records) {
+            Put put = mapper.mapFromEntity(record);
+            expectedPuts.add(put);
+            expectedEntities.add(mapper.mapToEntity(toResult(put)));
+        }
+        assertEquals(records, expectedEntities);
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                final int offset = t;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+                        // each thread walks the records from a different starting point to vary the interleaving
+                        int i = (iteration + offset) % records.size();
+                        Put put = mapper.mapFromEntity(records.get(i));
+                        assertPutEquals(expectedPuts.get(i), put);
+                        assertEquals(expectedEntities.get(i), mapper.mapToEntity(toResult(put)));
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private GenericRecord newRecord(int i) {
+        GenericRecord stats = new GenericData.Record(schema.getField("stats").schema());
+        stats.put("plays", (long) i * 3);
+        stats.put("label", "label-" + i);
+        Map<Utf8, Utf8> tags = new HashMap<>();
+        for (int j = 0; j <= i % 4; j++) {
+            tags.put(new Utf8("tag" + j), new Utf8("value" + i + "-" + j));
+        }
+
+        GenericRecord record = new GenericData.Record(schema);
+        record.put("account", new Utf8("account-" + (i % 3)));
+        record.put("id", (long) i);
+        record.put("name", i % 5 == 0 ? null : new Utf8("name-" + i));
+        record.put("score", i / 4.0);
+        record.put("tags", tags);
+        record.put("stats", stats);
+        return record;
+    }
+
+    private static void assertPutEquals(Put expected, Put actual) {
+        assertArrayEquals(expected.getRow(), actual.getRow());
+        List<Cell> expectedCells = sortedCells(expected);
+        List<Cell> actualCells = sortedCells(actual);
+        assertEquals(expectedCells.size(), actualCells.size());
+        for (int i = 0; i < expectedCells.size(); i++) {
+            assertArrayEquals(CellUtil.cloneQualifier(expectedCells.get(i)), CellUtil.cloneQualifier(actualCells.get(i)));
+            assertArrayEquals(CellUtil.cloneValue(expectedCells.get(i)), CellUtil.cloneValue(actualCells.get(i)));
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.brightcove.rna.bigtable.avro;
+
+import com.google.common.cache.CacheStats;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class AvroEntityMapperProviderTest {
+    static final String SCHEMA = "{\n" +
+        "    \"name\": \"TestEntity\",\n" +
+        "    \"namespace\": \"com.brightcove.rna.bigtable.avro\",\n" +
+        "    \"type\": \"record\",\n" +
+        "    \"fields\": [\n" +
+        "        { \"name\": \"id\", \"type\": \"long\", \"mapping\": { \"type\": \"key\", \"value\": \"0\" } },\n" +
+        "        { \"name\": \"count\", \"type\": \"int\", \"mapping\": { \"type\": \"column\", \"value\": \"meta:count\" } },\n" +
+        "        { \"name\": \"name\", \"type\": { \"type\": \"string\", \"avro.java.string\": \"String\" },\n" +
+        "          \"mapping\": { \"type\": \"column\", \"value\": \"meta:name\" } }\n" +
+        "    ]\n" +
+        "}";
+
+    @Before
+    public void setUp() {
+        AvroEntityMapperProvider.invalidateCache();
+    }
+
+    @Test
+    public void testMappersAreCached() {
+        CacheStats before = AvroEntityMapperProvider.getCacheStats();
+        AvroEntityMapper<TestEntity> mapper = AvroEntityMapperProvider.forClass(TestEntity.class);
+
+        assertSame(mapper, AvroEntityMapperProvider.forClass(TestEntity.class));
+        assertSame(mapper, AvroEntityMapperProvider.forSchemaAndClass(TestEntity.SCHEMA$.toString(), TestEntity.class));
+        CacheStats stats = AvroEntityMapperProvider.getCacheStats().minus(before);
+        assertEquals(1, stats.missCount());
+        assertEquals(2, stats.hitCount());
+    }
+
+    @Test
+    public void testSchemasAreSeparateEntries() {
+        AvroEntityMapper<TestEntity> mapper = AvroEntityMapperProvider.forClass(TestEntity.class);
+        String renamedColumn = SCHEMA.replace("meta:count", "meta:total");
+
+        AvroEntityMapper<TestEntity> renamed = AvroEntityMapperProvider.forSchemaAndClass(renamedColumn, TestEntity.class);
+        assertNotSame(mapper, renamed);
+        assertNotSame(renamed, AvroEntityMapperProvider.forSchemaAndClass(renamedColumn, SCHEMA, TestEntity.class));
+        assertSame(renamed, AvroEntityMapperProvider.forSchemaAndClass(renamedColumn, TestEntity.class));
+    }
+
+    @Test
+    public void testColumnsAreReadWithTheirCodec() {
+        // a schema file without the string type of the generated class
+        String plainSchema = SCHEMA.replace("{ \"type\": \"string\", \"avro.java.string\": \"String\" }", "\"string\"");
+
+        for (AvroEntityMapper<TestEntity> mapper : Arrays.asList(AvroEntityMapperProvider.forClass(TestEntity.class),
+            AvroEntityMapperProvider.forSchemaAndClass(plainSchema, TestEntity.class))) {
+            AvroEntitySerDe<TestEntity> entitySerDe = (AvroEntitySerDe<TestEntity>) mapper.getEntitySerDe();
+            assertTrue(entitySerDe.columnHandle("count").readsWithCodec());
+            assertTrue(entitySerDe.columnHandle("name").readsWithCodec());
+        }
+    }
+}
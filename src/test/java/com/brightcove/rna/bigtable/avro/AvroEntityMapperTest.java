@@ -9,16 +9,29 @@ import org.apache.avro.generic.GenericDatumWriter;
 import org.apache.avro.generic.GenericRecord;
 import org.apache.avro.io.DatumWriter;
 import org.apache.avro.util.Utf8;
+import org.apache.commons.lang.SerializationException;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
 import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Increment;
+import org.apache.hadoop.hbase.client.Mutation;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.RowMutations;
+import org.apache.hadoop.hbase.client.Scan;
 import org.junit.Test;
 
 import java.io.UnsupportedEncodingException;
 import java.util.*;
 
+import static com.brightcove.rna.bigtable.avro.TestResults.toResult;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 @SuppressWarnings("deprecation")
 public class AvroEntityMapperTest {
@@ -158,6 +171,463 @@ public class AvroEntityMapperTest {
             famMap.get(stringToBytes("record")));
     }
 
+    @Test
+    public void testRoundTripReusesScratchSpace() throws Exception {
+        EntityMapper<GenericRecord> entityMapper = mapper(schemaString);
+
+        GenericRecord first = newRecord(1, "a much longer value than the second one");
+        GenericRecord second = newRecord(2, "short");
+        Put firstPut = entityMapper.mapFromEntity(first);
+        Put secondPut = entityMapper.mapFromEntity(second);
+
+        assertEquals(first.toString(), entityMapper.mapToEntity(toResult(firstPut)).toString());
+        assertEquals(second.toString(), entityMapper.mapToEntity(toResult(secondPut)).toString());
+    }
+
+    @Test
+    public void testBatchMapping() throws Exception {
+        EntityMapper<GenericRecord> entityMapper = mapper(schemaString);
+
+        List<GenericRecord> records = Arrays.asList(newRecord(1, "one"), newRecord(2, "two"), newRecord(3, "three"));
+        List<Put> puts = entityMapper.mapFromEntities(records);
+        assertEquals(records.size(), puts.size());
+
+        Result[] results = puts.stream().map(TestResults::toResult).toArray(Result[]::new);
+        List<GenericRecord> entities = entityMapper.mapToEntities(results);
+        assertEquals(records.toString(), entities.toString());
+        assertEquals(records.toString(), entityMapper.mapToEntities(Arrays.asList(results)).toString());
+    }
+
+    @Test
+    public void testProjection() throws Exception {
+        AvroEntityMapper<GenericRecord> entityMapper = mapper(schemaString);
+        AvroEntityMapper<GenericRecord> projectedMapper = entityMapper.withProjection(Arrays.asList("field1", "field3"));
+
+        GenericRecord record = newRecord(5, "five");
+        GenericRecord projected = projectedMapper.mapToEntity(toResult(entityMapper.mapFromEntity(record)));
+        assertEquals(record.get("keyPart1"), projected.get("keyPart1"));
+        assertEquals(record.get("keyPart2"), projected.get("keyPart2"));
+        assertEquals(record.get("field1"), projected.get("field1"));
+        assertEquals(record.get("field3"), projected.get("field3"));
+        assertNull(projected.get("field2"));
+        assertNull(projected.get("field4"));
+
+        assertEquals(Sets.newHashSet("int:1", "map:"), projectedMapper.getRequiredColumns());
+        assertEquals(Sets.newHashSet("int", "map"), projectedMapper.getRequiredColumnFamilies());
+
+        Scan scan = projectedMapper.addRequiredColumns(new Scan());
+        assertEquals(2, scan.getFamilyMap().size());
+        assertNull(scan.getFamilyMap().get(stringToBytes("map")));
+        NavigableSet<byte[]> intColumns = scan.getFamilyMap().get(stringToBytes("int"));
+        assertEquals(1, intColumns.size());
+        assertArrayEquals(stringToBytes("1"), intColumns.first());
+    }
+
+    @Test
+    public void testLazyEntity() throws Exception {
+        AvroEntityMapper<GenericRecord> entityMapper = mapper(schemaString);
+
+        GenericRecord record = newRecord(3, "three");
+        Put put = entityMapper.mapFromEntity(record);
+        // a corrupt field2 value only fails when field2 is read
+        byte[] field2Qualifier = stringToBytes("2");
+        put.getFamilyCellMap().get(stringToBytes("int")).removeIf(cell -> CellUtil.matchingQualifier(cell, field2Qualifier));
+        put.addColumn(stringToBytes("int"), stringToBytes("2"), new byte[]{1});
+        LazyAvroEntity<GenericRecord> lazyEntity = entityMapper.mapToLazyEntity(toResult(put));
+
+        assertEquals(record.get("keyPart2"), lazyEntity.get("keyPart2"));
+        assertEquals(record.get("field1"), lazyEntity.get("field1"));
+        assertEquals(record.get("field3"), lazyEntity.get("field3"));
+        try {
+            lazyEntity.get("field2");
+            fail("expected the corrupt field2 column to fail deserialization");
+        } catch (SerializationException e) {
+            // expected
+        }
+
+        lazyEntity.put("field2", 7);
+        GenericRecord entity = lazyEntity.toEntity();
+        record.put("field2", 7);
+        assertEquals(record.toString(), entity.toString());
+
+        assertNull(entityMapper.mapToLazyEntity(Result.create(new Cell[0])));
+    }
+
+    @Test
+    public void testLazyEntityEqualityWithMapField() throws Exception {
+        AvroEntityMapper<GenericRecord> entityMapper = mapper(schemaString);
+
+        // field3 is a keyAsColumn map, which GenericData's ordering compare refuses to compare
+        Result result = toResult(entityMapper.mapFromEntity(newRecord(4, "four")));
+        LazyAvroEntity<GenericRecord> lazyEntity = entityMapper.mapToLazyEntity(result);
+        LazyAvroEntity<GenericRecord> other = entityMapper.mapToLazyEntity(result);
+
+        assertTrue(lazyEntity.equals(other));
+        assertEquals(lazyEntity.hashCode(), other.hashCode());
+        // records do not consider a view equal to them, so views are only equal to views
+        GenericRecord entity = entityMapper.mapToEntity(result);
+        assertFalse(lazyEntity.equals(entity));
+        assertFalse(entity.equals(lazyEntity));
+        assertEquals(entity, lazyEntity.toEntity());
+
+        other.put("field3", new HashMap<>());
+        assertFalse(lazyEntity.equals(other));
+    }
+
+    @Test
+    public void testKeyAsColumnKeysAreUtf8() throws Exception {
+        AvroEntityMapper<GenericRecord> entityMapper = mapper(schemaString);
+
+        // a reused Utf8 can have a backing array longer than its content
+        Utf8 key = new Utf8("h\u00e9llo");
+        key.setByteLength(3);
+        GenericRecord record = newRecord(5, "five");
+        record.put("field3", Collections.singletonMap(key, new Utf8("caf\u00e9")));
+        Put put = entityMapper.mapFromEntity(record);
+
+        List<Cell> mapCells = put.getFamilyCellMap().get(stringToBytes("map"));
+        assertEquals(1, mapCells.size());
+        assertArrayEquals("h\u00e9".getBytes("UTF-8"), CellUtil.cloneQualifier(mapCells.get(0)));
+        assertEquals(Collections.singletonMap(new Utf8("h\u00e9"), new Utf8("caf\u00e9")), entityMapper.mapToEntity(toResult(put)).get("field3"));
+    }
+
+    @Test
+    public void testKeyAsColumnReadsLatestVersion() throws Exception {
+        AvroEntityMapper<GenericRecord> entityMapper = mapper(schemaString);
+        AvroEntitySerDe<GenericRecord> entitySerDe = (AvroEntitySerDe<GenericRecord>) entityMapper.getEntitySerDe();
+
+        GenericRecord record = newRecord(4, "four");
+        Put put = entityMapper.mapFromEntity(record);
+        // older versions sort after the latest one and must be skipped
+        put.addColumn(stringToBytes("map"), stringToBytes("k4"), 1L, entitySerDe.serializeKeyAsColumnValueToBytes("field3", "k4", new Utf8("old")));
+        put.addColumn(stringToBytes("record"), stringToBytes("sub_field1"), 1L, new byte[]{(byte) 0x7e});
+
+        assertEquals(record.toString(), entityMapper.mapToEntity(toResult(put)).toString());
+    }
+
+    @Test
+    public void testSinglePassDecoding() throws Exception {
+        AvroEntityMapper<GenericRecord> entityMapper = mapper(schemaString);
+        AvroEntitySerDe<GenericRecord> entitySerDe = (AvroEntitySerDe<GenericRecord>) entityMapper.getEntitySerDe();
+        AvroEntityMapper<GenericRecord> singlePassMapper = entityMapper.withSinglePassDecoding();
+
+        GenericRecord record = newRecord(6, "six");
+        Put put = entityMapper.mapFromEntity(record);
+        // unmapped families and columns around the mapped ones, and older versions of mapped columns
+        put.addColumn(stringToBytes("aaa"), stringToBytes("x"), new byte[]{1});
+        put.addColumn(stringToBytes("int"), stringToBytes("0"), new byte[]{1});
+        put.addColumn(stringToBytes("int"), stringToBytes("1"), 1L, new byte[]{0, 0, 0, 9});
+        put.addColumn(stringToBytes("map"), stringToBytes("k6"), 1L, entitySerDe.serializeKeyAsColumnValueToBytes("field3", "k6", new Utf8("old")));
+        put.addColumn(stringToBytes("zzz"), stringToBytes("x"), new byte[]{1});
+        Result result = toResult(put);
+
+        assertEquals(record.toString(), singlePassMapper.mapToEntity(result).toString());
+        assertEquals(entityMapper.mapToEntity(result).toString(), singlePassMapper.mapToEntity(result).toString());
+
+        // rows missing some of the columns decode like they do with lookups
+        put.getFamilyCellMap().remove(stringToBytes("map"));
+        put.getFamilyCellMap().get(stringToBytes("int")).removeIf(cell -> cell.getQualifierArray()[cell.getQualifierOffset()] == '2');
+        result = toResult(put);
+        assertEquals(entityMapper.mapToEntity(result).toString(), singlePassMapper.mapToEntity(result).toString());
+
+        AvroEntityMapper<GenericRecord> projected = singlePassMapper.withProjection(Collections.singleton("field1"));
+        assertEquals(entityMapper.withProjection(Collections.singleton("field1")).mapToEntity(result).toString(),
+            projected.mapToEntity(result).toString());
+    }
+
+    @Test
+    public void testSchemaResolution() throws Exception {
+        AvroEntityMapper<GenericRecord> writerMapper = mapper(schemaString);
+
+        // field1 is promoted to long, and the field4 record drops sub_field2 and gains sub_field3
+        String readerSchemaString = schemaString
+            .replace("\"name\": \"field1\", \"type\": \"int\"", "\"name\": \"field1\", \"type\": \"long\"")
+            .replace("{ \"name\": \"sub_field2\", \"type\": \"int\" }", "{ \"name\": \"sub_field3\", \"type\": \"int\", \"default\": 5 }");
+        AvroEntityMapper<GenericRecord> readerMapper = mapper(readerSchemaString, schemaString);
+
+        // a row written with the old schema
+        GenericRecord written = newRecord(3, "three");
+        GenericRecord read = readerMapper.mapToEntity(toResult(writerMapper.mapFromEntity(written)));
+
+        assertEquals(30L, read.get("field1"));
+        assertEquals(300, read.get("field2"));
+        assertEquals(written.get("field3"), read.get("field3"));
+        GenericRecord subRecord = (GenericRecord) read.get("field4");
+        assertEquals(3, subRecord.get("sub_field1"));
+        assertEquals(5, subRecord.get("sub_field3"));
+
+        // a row written with the new schema, read back by the mapper that wrote it
+        read.put("field1", 1L << 40);
+        subRecord.put("sub_field3", 7);
+        assertEquals(read, readerMapper.mapToEntity(toResult(readerMapper.mapFromEntity(read))));
+    }
+
+    @Test
+    public void testSchemaResolutionWithSeveralWriterSchemas() throws Exception {
+        AvroEntityMapper<GenericRecord> firstMapper = mapper(schemaString);
+        // the second version promotes field1 to long and adds sub_field3, the third one drops sub_field2
+        String secondSchemaString = schemaString
+            .replace("\"name\": \"field1\", \"type\": \"int\"", "\"name\": \"field1\", \"type\": \"long\"")
+            .replace("{ \"name\": \"sub_field2\", \"type\": \"int\" }",
+                "{ \"name\": \"sub_field2\", \"type\": \"int\" }, { \"name\": \"sub_field3\", \"type\": \"int\", \"default\": 5 }");
+        String thirdSchemaString = secondSchemaString.replace("{ \"name\": \"sub_field2\", \"type\": \"int\" }, ", "");
+        AvroEntityMapper<GenericRecord> secondMapper = mapper(secondSchemaString);
+        AvroEntityMapper<GenericRecord> readerMapper = mapper(thirdSchemaString, schemaString, secondSchemaString);
+
+        GenericRecord first = readerMapper.mapToEntity(toResult(firstMapper.mapFromEntity(newRecord(3, "three"))));
+        assertEquals(30L, first.get("field1"));
+        assertEquals(5, ((GenericRecord) first.get("field4")).get("sub_field3"));
+
+        GenericRecord secondRecord = new GenericData.Record(new Schema.Parser().parse(secondSchemaString));
+        GenericRecord secondSubRecord = new GenericData.Record(secondRecord.getSchema().getField("field4").schema());
+        secondSubRecord.put("sub_field1", 4);
+        secondSubRecord.put("sub_field2", -4);
+        secondSubRecord.put("sub_field3", 7);
+        secondRecord.put("keyPart1", 4);
+        secondRecord.put("keyPart2", 5);
+        secondRecord.put("field1", 40L);
+        secondRecord.put("field2", 400);
+        secondRecord.put("field3", new HashMap<>());
+        secondRecord.put("field4", secondSubRecord);
+        GenericRecord second = readerMapper.mapToEntity(toResult(secondMapper.mapFromEntity(secondRecord)));
+        assertEquals(40L, second.get("field1"));
+        assertEquals(7, ((GenericRecord) second.get("field4")).get("sub_field3"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSchemaChangesWithAmbiguousCellsAreRejected() throws Exception {
+        // the 4 byte int cells of old rows could also be nullable ints written by the new schema
+        mapper(schemaString.replace("\"name\": \"field2\", \"type\": \"int\"", "\"name\": \"field2\", \"type\": [\"null\", \"int\"]"),
+            schemaString);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testProjectionOfUnknownField() throws Exception {
+        mapper(schemaString).withProjection(Collections.singleton("missing"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testRowMutationsOfChangedFields() throws Exception {
+        AvroEntityMapper<GenericRecord> entityMapper = mapper(schemaString);
+
+        GenericRecord oldRecord = newRecord(5, "five");
+        ((Map<Utf8, Utf8>) oldRecord.get("field3")).put(new Utf8("kept"), new Utf8("same"));
+        ((Map<Utf8, Utf8>) oldRecord.get("field3")).put(new Utf8("changed"), new Utf8("before"));
+        GenericRecord newRecord = GenericData.get().deepCopy(oldRecord.getSchema(), oldRecord);
+        newRecord.put("field1", 51);
+        Map<Utf8, Utf8> newMap = (Map<Utf8, Utf8>) newRecord.get("field3");
+        newMap.remove(new Utf8("k5"));
+        newMap.put(new Utf8("changed"), new Utf8("after"));
+        newMap.put(new Utf8("added"), new Utf8("new"));
+
+        RowMutations mutations = entityMapper.mapToRowMutations(oldRecord, newRecord);
+        assertEquals(2, mutations.getMutations().size());
+        Put put = (Put) mutations.getMutations().get(0);
+        assertEquals(3, put.size());
+        assertEquals(1, put.get(stringToBytes("int"), stringToBytes("1")).size());
+        assertEquals(1, put.get(stringToBytes("map"), stringToBytes("changed")).size());
+        assertEquals(1, put.get(stringToBytes("map"), stringToBytes("added")).size());
+        Delete delete = (Delete) mutations.getMutations().get(1);
+        assertEquals(1, delete.size());
+        assertEquals(1, delete.getFamilyCellMap().get(stringToBytes("map")).size());
+        assertEquals(KeyValue.Type.DeleteColumn.getCode(), delete.getFamilyCellMap().get(stringToBytes("map")).get(0).getTypeByte());
+
+        // diffing against the stored row gives the same mutations
+        RowMutations fromResult = entityMapper.mapToRowMutations(toResult(entityMapper.mapFromEntity(oldRecord)), newRecord);
+        assertEquals(mutations.getMutations().toString(), fromResult.getMutations().toString());
+
+        // an unchanged entity has nothing to write, and a new row gets every cell
+        assertTrue(entityMapper.mapToRowMutations(oldRecord, oldRecord).getMutations().isEmpty());
+        Put created = (Put) entityMapper.mapToRowMutations(Result.create(new Cell[0]), newRecord).getMutations().get(0);
+        assertEquals(entityMapper.mapFromEntity(newRecord).size(), created.size());
+    }
+
+    @Test
+    public void testRowMutationsDeleteNullFields() throws Exception {
+        AvroEntityMapper<GenericRecord> counterMapper = counterMapper("long");
+        Schema schema = ((AvroEntitySchema) counterMapper.getEntitySchema()).getAvroSchema();
+        GenericRecord oldRecord = counterRecord(schema, 1, 2L, 0L);
+        GenericRecord newRecord = counterRecord(schema, 1, 2L, 0L);
+        newRecord.put("name", null);
+
+        List<Mutation> mutations = counterMapper.mapToRowMutations(oldRecord, newRecord).getMutations();
+        assertEquals(1, mutations.size());
+        Delete delete = (Delete) mutations.get(0);
+        assertTrue(CellUtil.matchingQualifier(delete.getFamilyCellMap().get(stringToBytes("meta")).get(0), stringToBytes("name")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRowMutationsOfAnotherRow() throws Exception {
+        AvroEntityMapper<GenericRecord> counterMapper = counterMapper("long");
+        Schema schema = ((AvroEntitySchema) counterMapper.getEntitySchema()).getAvroSchema();
+        counterMapper.mapToRowMutations(counterRecord(schema, 1, 2L, 0L), counterRecord(schema, 2, 2L, 0L));
+    }
+
+    @Test
+    public void testRowMutationsKeepColumnsSharingKeyAsColumnFamily() throws Exception {
+        AvroEntityMapper<GenericRecord> mapper = mapper("{\n" +
+            "    \"name\": \"tagged\",\n" +
+            "    \"type\": \"record\",\n" +
+            "    \"fields\": [\n" +
+            "        { \"name\": \"id\", \"type\": \"int\", \"mapping\": { \"type\": \"key\", \"value\": \"0\" } },\n" +
+            "        { \"name\": \"name\", \"type\": [\"null\", \"string\"], \"mapping\": { \"type\": \"column\", \"value\": \"meta:name\" } },\n" +
+            "        { \"name\": \"tags\", \"type\": { \"type\": \"map\", \"values\": \"string\" }, \"mapping\": { \"type\": \"keyAsColumn\", \"value\": \"meta\" } }\n" +
+            "    ]\n" +
+            "}");
+        Schema schema = ((AvroEntitySchema) mapper.getEntitySchema()).getAvroSchema();
+        GenericRecord oldRecord = new GenericData.Record(schema);
+        oldRecord.put("id", 1);
+        oldRecord.put("name", "one");
+        oldRecord.put("tags", ImmutableMap.of("a", "x", "b", "y"));
+        GenericRecord newRecord = new GenericData.Record(schema);
+        newRecord.put("id", 1);
+        newRecord.put("name", "one");
+        newRecord.put("tags", ImmutableMap.of("a", "x"));
+
+        // only the removed key is deleted, not the column of the other field in the family
+        List<Mutation> mutations = mapper.mapToRowMutations(oldRecord, newRecord).getMutations();
+        assertEquals(1, mutations.size());
+        Delete delete = (Delete) mutations.get(0);
+        assertEquals(1, delete.size());
+        assertTrue(CellUtil.matchingQualifier(delete.getFamilyCellMap().get(stringToBytes("meta")).get(0), stringToBytes("b")));
+
+        // the family is fetched whole for the keyAsColumn field, so a projection sees the column it leaves out
+        Result oldRow = toResult(mapper.mapFromEntity(oldRecord));
+        AvroEntityMapper<GenericRecord> projected = mapper.withProjection(Collections.singleton("tags"));
+        assertEquals(mutations.toString(), projected.mapToRowMutations(oldRow, newRecord).getMutations().toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRowMutationsOfAnotherRowWithoutColumns() throws Exception {
+        AvroEntityMapper<GenericRecord> mapper = mapper("{\n" +
+            "    \"name\": \"names\",\n" +
+            "    \"type\": \"record\",\n" +
+            "    \"fields\": [\n" +
+            "        { \"name\": \"id\", \"type\": \"int\", \"mapping\": { \"type\": \"key\", \"value\": \"0\" } },\n" +
+            "        { \"name\": \"name\", \"type\": [\"null\", \"string\"], \"mapping\": { \"type\": \"column\", \"value\": \"meta:name\" } }\n" +
+            "    ]\n" +
+            "}");
+        Schema schema = ((AvroEntitySchema) mapper.getEntitySchema()).getAvroSchema();
+        // the old entity has no column, so it maps to an empty Put
+        GenericRecord oldRecord = new GenericData.Record(schema);
+        oldRecord.put("id", 1);
+        GenericRecord newRecord = new GenericData.Record(schema);
+        newRecord.put("id", 2);
+        newRecord.put("name", "two");
+        mapper.mapToRowMutations(oldRecord, newRecord);
+    }
+
+    @Test
+    public void testCountersAsIncrements() throws Exception {
+        AvroEntityMapper<GenericRecord> counterMapper = counterMapper("long");
+        Schema schema = ((AvroEntitySchema) counterMapper.getEntitySchema()).getAvroSchema();
+
+        GenericRecord first = counterRecord(schema, 1, 2L, 0L);
+        Increment increment = counterMapper.mapToIncrement(first);
+        Map<byte[], NavigableMap<byte[], Long>> deltas = increment.getFamilyMapOfLongs();
+        assertEquals(2L, (long) deltas.get(stringToBytes("c")).get(stringToBytes("views")));
+        // a zero delta is left out
+        assertEquals(1, deltas.get(stringToBytes("c")).size());
+
+        List<Mutation> mutations = counterMapper.mapToMutations(first);
+        assertEquals(2, mutations.size());
+        Put put = (Put) mutations.get(0);
+        assertEquals(1, put.size());
+        assertEquals(1, put.get(stringToBytes("meta"), stringToBytes("name")).size());
+        assertTrue(mutations.get(1) instanceof Increment);
+
+        assertNull(counterMapper.mapToIncrement(counterRecord(schema, 1, 0L, 0L)));
+    }
+
+    @Test
+    public void testIncrementsAreCoalescedByRow() throws Exception {
+        AvroEntityMapper<GenericRecord> counterMapper = counterMapper("long");
+        Schema schema = ((AvroEntitySchema) counterMapper.getEntitySchema()).getAvroSchema();
+
+        List<Increment> increments = counterMapper.mapToIncrements(Arrays.asList(
+            counterRecord(schema, 1, 2L, 0L),
+            counterRecord(schema, 2, 1L, 1L),
+            counterRecord(schema, 1, 3L, 4L),
+            counterRecord(schema, 3, 5L, 0L),
+            counterRecord(schema, 3, -5L, 0L)));
+
+        assertEquals(2, increments.size());
+        assertArrayEquals(counterMapper.getKeySerDe().serialize(counterRecord(schema, 1, 0L, 0L)), increments.get(0).getRow());
+        NavigableMap<byte[], Long> first = increments.get(0).getFamilyMapOfLongs().get(stringToBytes("c"));
+        assertEquals(5L, (long) first.get(stringToBytes("views")));
+        assertEquals(4L, (long) first.get(stringToBytes("plays")));
+        NavigableMap<byte[], Long> second = increments.get(1).getFamilyMapOfLongs().get(stringToBytes("c"));
+        assertEquals(1L, (long) second.get(stringToBytes("views")));
+        assertEquals(1L, (long) second.get(stringToBytes("plays")));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testIntCountersCannotBeIncremented() throws Exception {
+        AvroEntityMapper<GenericRecord> counterMapper = counterMapper("int");
+        Schema schema = ((AvroEntitySchema) counterMapper.getEntitySchema()).getAvroSchema();
+        GenericRecord record = new GenericData.Record(schema);
+        record.put("id", 1);
+        record.put("views", 1);
+        counterMapper.mapToIncrement(record);
+    }
+
+    private AvroEntityMapper<GenericRecord> mapper(String schema, String... writerSchemas) {
+        AvroKeySchema keySchema = schemaParser.parseKeySchema(schema);
+        AvroEntitySchema entitySchema = schemaParser.parseEntitySchema(schema);
+        List<Schema> writerAvroSchemas = new ArrayList<>();
+        for (String writerSchema : writerSchemas) {
+            writerAvroSchemas.add(schemaParser.parseEntitySchema(writerSchema).getAvroSchema());
+        }
+        AvroEntitySerDe<GenericRecord> entitySerDe = new AvroEntitySerDe<>(new AvroEntityComposer<>(entitySchema, false),
+            entitySchema, writerAvroSchemas, false);
+        return new AvroEntityMapper<>(keySchema, entitySchema, new AvroKeySerDe(keySchema.getAvroSchema()), entitySerDe);
+    }
+
+    private AvroEntityMapper<GenericRecord> counterMapper(String counterType) {
+        String counterSchema = "{\n" +
+            "    \"name\": \"counters\",\n" +
+            "    \"type\": \"record\",\n" +
+            "    \"fields\": [\n" +
+            "        { \"name\": \"id\", \"type\": \"int\", \"mapping\": { \"type\": \"key\", \"value\": \"0\" } },\n" +
+            "        { \"name\": \"name\", \"type\": [\"null\", \"string\"], \"mapping\": { \"type\": \"column\", \"value\": \"meta:name\" } },\n" +
+            "        { \"name\": \"views\", \"type\": \"" + counterType + "\", \"mapping\": { \"type\": \"counter\", \"value\": \"c:views\" } },\n" +
+            "        { \"name\": \"plays\", \"type\": \"" + counterType + "\", \"mapping\": { \"type\": \"counter\", \"value\": \"c:plays\" } }\n" +
+            "    ]\n" +
+            "}";
+        AvroKeySchema keySchema = schemaParser.parseKeySchema(counterSchema);
+        AvroEntitySchema entitySchema = schemaParser.parseEntitySchema(counterSchema);
+        return new AvroEntityMapper<>(keySchema, entitySchema, new AvroKeySerDe(keySchema.getAvroSchema()),
+            new AvroEntitySerDe<>(new AvroEntityComposer<>(entitySchema, false), entitySchema, false));
+    }
+
+    private GenericRecord counterRecord(Schema schema, int id, long views, long plays) {
+        GenericRecord record = new GenericData.Record(schema);
+        record.put("id", id);
+        record.put("name", "row" + id);
+        record.put("views", views);
+        record.put("plays", plays);
+        return record;
+    }
+
+    private GenericRecord newRecord(int value, String mapValue) {
+        Schema schema = new Schema.Parser().parse(schemaString);
+        GenericRecord subRecord = new GenericData.Record(schema.getField("field4").schema());
+        subRecord.put("sub_field1", value);
+        subRecord.put("sub_field2", -value);
+        Map<Utf8, Utf8> map = new HashMap<>();
+        map.put(new Utf8("k" + value), new Utf8(mapValue));
+
+        GenericRecord record = new GenericData.Record(schema);
+        record.put("keyPart1", value);
+        record.put("keyPart2", value + 1);
+        record.put("field1", value * 10);
+        record.put("field2", value * 100);
+        record.put("field3", map);
+        record.put("field4", subRecord);
+        return record;
+    }
+
     private void assertKeyValuesMatchMap(Map<String, byte[]> expected, List<KeyValue> kvs)
         throws UnsupportedEncodingException {
         Set<String> keys = Sets.newHashSet();
@@ -0,0 +1,230 @@
+package com.brightcove.rna.bigtable.avro;
+
+import com.brightcove.rna.bigtable.KeyRange;
+import com.brightcove.rna.bigtable.avro.io.MemcmpEncoder;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.generic.GenericRecordBuilder;
+import org.apache.avro.generic.IndexedRecord;
+import org.apache.avro.util.Utf8;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AvroKeySerDeTest {
+    private static final AvroKeyEntitySchemaParser schemaParser = new AvroKeyEntitySchemaParser();
+    private final String schemaString = "{ \n" +
+        "    \"name\": \"test\",\n" +
+        "    \"type\": \"record\",\n" +
+        "    \"fields\": [\n" +
+        "        { \"name\": \"field1\", \"type\": \"int\", \"mapping\": { \"type\": \"column\", \"value\": \"meta:field1\" } },\n" +
+        "        { \"name\": \"keyPart2\", \"type\": \"double\", \"mapping\": { \"type\": \"key\", \"value\": \"2\" } },\n" +
+        "        { \"name\": \"keyPart1\", \"type\": \"long\", \"mapping\": { \"type\": \"key\", \"value\": \"1\" } },\n" +
+        "        { \"name\": \"keyPart0\", \"type\": \"string\", \"mapping\": { \"type\": \"key\", \"value\": \"0\" } },\n" +
+        "        { \"name\": \"keyPart3\", \"type\": [\"null\", \"string\"], \"mapping\": { \"type\": \"key\", \"value\": \"3\" } }\n" +
+        "    ]\n" +
+        "}";
+
+    @Test
+    public void testSerializeMatchesDatumWriterEncoding() throws Exception {
+        Schema entitySchema = new Schema.Parser().parse(schemaString);
+        Schema keySchema = schemaParser.parseKeySchema(schemaString).getAvroSchema();
+        AvroKeySerDe keySerDe = new AvroKeySerDe(keySchema, entitySchema);
+
+        GenericRecord entity = new GenericRecordBuilder(entitySchema)
+            .set("field1", 7)
+            .set("keyPart0", "account\u0000-1")
+            .set("keyPart1", -11L)
+            .set("keyPart2", 1.5d)
+            .set("keyPart3", new Utf8("video"))
+            .build();
+
+        GenericRecord key = new GenericData.Record(keySchema);
+        key.put("keyPart0", "account\u0000-1");
+        key.put("keyPart1", -11L);
+        key.put("keyPart2", 1.5d);
+        key.put("keyPart3", new Utf8("video"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AvroUtils.writeAvroEntity(key, new MemcmpEncoder(out), new GenericDatumWriter<>(keySchema));
+
+        assertArrayEquals(out.toByteArray(), keySerDe.serialize(entity));
+        // a key record serializes to the same bytes as the entity it came from
+        assertArrayEquals(out.toByteArray(), keySerDe.serialize(key));
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Schema entitySchema = new Schema.Parser().parse(schemaString);
+        Schema keySchema = schemaParser.parseKeySchema(schemaString).getAvroSchema();
+        AvroKeySerDe keySerDe = new AvroKeySerDe(keySchema);
+
+        GenericRecord entity = new GenericRecordBuilder(entitySchema)
+            .set("field1", 7)
+            .set("keyPart0", "account-1")
+            .set("keyPart1", 11L)
+            .set("keyPart2", -1.5d)
+            .set("keyPart3", null)
+            .build();
+
+        IndexedRecord key = keySerDe.deserialize(keySerDe.serialize(entity));
+        assertEquals(new Utf8("account-1"), key.get(0));
+        assertEquals(11L, key.get(1));
+        assertEquals(-1.5d, key.get(2));
+        assertEquals(null, key.get(3));
+    }
+
+    @Test
+    public void testKeyRanges() throws Exception {
+        Schema entitySchema = new Schema.Parser().parse(schemaString);
+        Schema keySchema = schemaParser.parseKeySchema(schemaString).getAvroSchema();
+        AvroKeySerDe keySerDe = new AvroKeySerDe(keySchema, entitySchema);
+
+        String[] accounts = {"", "a", "a\u0000", "a\u0000b", "ab", "b", "\u00ff"};
+        long[] ids = {Long.MIN_VALUE, -2L, -1L, 0L, 1L, 2L, Long.MAX_VALUE};
+
+        KeyRange accountRange = keySerDe.prefixRange("a\u0000");
+        KeyRange idRange = keySerDe.range(Collections.singletonList("a"), -1L, 2L);
+        KeyRange inclusiveIdRange = keySerDe.range(Collections.singletonList("a"), -1L, false, 2L, true);
+        KeyRange openIdRange = keySerDe.range(Collections.singletonList("ab"), null, 0L);
+        KeyRange everything = keySerDe.prefixRange();
+
+        for (String account : accounts) {
+            for (long id : ids) {
+                GenericRecord entity = new GenericRecordBuilder(entitySchema)
+                    .set("field1", 7)
+                    .set("keyPart0", account)
+                    .set("keyPart1", id)
+                    .set("keyPart2", -0.5d)
+                    .set("keyPart3", null)
+                    .build();
+                byte[] row = keySerDe.serialize(entity);
+
+                assertEquals(account.equals("a\u0000"), contains(accountRange, row));
+                assertEquals(account.equals("a") && id >= -1L && id < 2L, contains(idRange, row));
+                assertEquals(account.equals("a") && id > -1L && id <= 2L, contains(inclusiveIdRange, row));
+                assertEquals(account.equals("ab") && id < 0L, contains(openIdRange, row));
+                assertTrue(contains(everything, row));
+            }
+        }
+    }
+
+    @Test
+    public void testRangesAfterTheLargestValueAreEmpty() throws Exception {
+        String longKeySchemaString = "{ \"name\": \"test\", \"type\": \"record\", \"fields\": [\n" +
+            "    { \"name\": \"id\", \"type\": \"long\", \"mapping\": { \"type\": \"key\", \"value\": \"0\" } }\n" +
+            "] }";
+        Schema longKeySchema = schemaParser.parseKeySchema(longKeySchemaString).getAvroSchema();
+        AvroKeySerDe longKeySerDe = new AvroKeySerDe(longKeySchema);
+        GenericRecord key = new GenericData.Record(longKeySchema);
+        key.put("id", Long.MAX_VALUE);
+
+        KeyRange afterMax = longKeySerDe.range(Collections.emptyList(), Long.MAX_VALUE, false, null, false);
+        assertTrue(afterMax.isEmpty());
+        assertFalse(contains(afterMax, longKeySerDe.serialize(key)));
+        assertFalse(longKeySerDe.range(Collections.emptyList(), Long.MAX_VALUE, true, null, false).isEmpty());
+
+        Schema keySchema = schemaParser.parseKeySchema(schemaString).getAvroSchema();
+        AvroKeySerDe keySerDe = new AvroKeySerDe(keySchema);
+        assertTrue(keySerDe.range(Collections.singletonList("a"), Long.MAX_VALUE, false, null, false).isEmpty());
+        assertTrue(keySerDe.range(Collections.singletonList("a"), 1L, false, 1L, true).isEmpty());
+        assertFalse(keySerDe.range(Collections.singletonList("a"), 1L, true, 1L, true).isEmpty());
+    }
+
+    @Test
+    public void testPartialDecode() throws Exception {
+        Schema entitySchema = new Schema.Parser().parse(schemaString);
+        Schema keySchema = schemaParser.parseKeySchema(schemaString).getAvroSchema();
+        AvroKeySerDe keySerDe = new AvroKeySerDe(keySchema, entitySchema);
+
+        GenericRecord entity = new GenericRecordBuilder(entitySchema)
+            .set("field1", 7)
+            .set("keyPart0", "acc\u0000ount")
+            .set("keyPart1", -11L)
+            .set("keyPart2", 1.5d)
+            .set("keyPart3", new Utf8("video"))
+            .build();
+        byte[] row = keySerDe.serialize(entity);
+
+        assertArrayEquals(new Object[]{new Utf8("acc\u0000ount"), -11L}, keySerDe.deserializePrefix(row, 2));
+        assertEquals(0, keySerDe.deserializePrefix(row, 0).length);
+        assertEquals(-11L, keySerDe.deserializeLongField(row, 1));
+        assertEquals(1.5d, keySerDe.deserializeField(row, 2));
+        assertEquals(new Utf8("video"), keySerDe.deserializeField(row, 3));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPartialDecodeChecksFieldType() throws Exception {
+        Schema entitySchema = new Schema.Parser().parse(schemaString);
+        Schema keySchema = schemaParser.parseKeySchema(schemaString).getAvroSchema();
+        new AvroKeySerDe(keySchema, entitySchema).deserializeIntField(new byte[0], 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPartialDecodeChecksFieldIndex() throws Exception {
+        Schema entitySchema = new Schema.Parser().parse(schemaString);
+        Schema keySchema = schemaParser.parseKeySchema(schemaString).getAvroSchema();
+        new AvroKeySerDe(keySchema, entitySchema).deserializeField(new byte[0], 4);
+    }
+
+    @Test
+    public void testSerializeRecordsOfSeveralSchemas() throws Exception {
+        Schema entitySchema = new Schema.Parser().parse(schemaString);
+        Schema keySchema = schemaParser.parseKeySchema(schemaString).getAvroSchema();
+        AvroKeySerDe keySerDe = new AvroKeySerDe(keySchema, entitySchema);
+        // equal to the entity schema, but a different instance
+        Schema parsedAgain = new Schema.Parser().parse(schemaString);
+        // the same fields in another order
+        Schema reordered = new Schema.Parser().parse("{ \n" +
+            "    \"name\": \"test\",\n" +
+            "    \"type\": \"record\",\n" +
+            "    \"fields\": [\n" +
+            "        { \"name\": \"keyPart0\", \"type\": \"string\" },\n" +
+            "        { \"name\": \"keyPart1\", \"type\": \"long\" },\n" +
+            "        { \"name\": \"keyPart2\", \"type\": \"double\" },\n" +
+            "        { \"name\": \"keyPart3\", \"type\": [\"null\", \"string\"] },\n" +
+            "        { \"name\": \"field1\", \"type\": \"int\" }\n" +
+            "    ]\n" +
+            "}");
+        assertFalse(reordered.equals(entitySchema));
+
+        byte[] expected = null;
+        for (int i = 0; i < 3; i++) {
+            for (Schema schema : new Schema[]{entitySchema, keySchema, parsedAgain, reordered}) {
+                GenericRecord record = new GenericData.Record(schema);
+                if (schema.getField("field1") != null) {
+                    record.put("field1", 7);
+                }
+                record.put("keyPart0", "account-1");
+                record.put("keyPart1", 11L);
+                record.put("keyPart2", -1.5d);
+                record.put("keyPart3", new Utf8("video"));
+                byte[] keyBytes = keySerDe.serialize(record);
+                if (expected == null) {
+                    expected = keyBytes;
+                }
+                assertArrayEquals(expected, keyBytes);
+            }
+        }
+    }
+
+    @Test
+    public void testPrefixSuccessor() {
+        assertArrayEquals(new byte[]{1, 3}, KeyRange.prefixSuccessor(new byte[]{1, 2}));
+        assertArrayEquals(new byte[]{2}, KeyRange.prefixSuccessor(new byte[]{1, (byte) 0xff, (byte) 0xff}));
+        assertArrayEquals(new byte[0], KeyRange.prefixSuccessor(new byte[]{(byte) 0xff}));
+    }
+
+    private static boolean contains(KeyRange range, byte[] row) {
+        return Bytes.compareTo(row, range.getStartRow()) >= 0
+            && (range.getStopRow().length == 0 || Bytes.compareTo(row, range.getStopRow()) < 0);
+    }
+}
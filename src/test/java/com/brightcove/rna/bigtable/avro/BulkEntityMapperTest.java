@@ -0,0 +1,101 @@
+package com.brightcove.rna.bigtable.avro;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.util.Utf8;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static com.brightcove.rna.bigtable.avro.TestResults.toResult;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BulkEntityMapperTest {
+    private static final AvroKeyEntitySchemaParser schemaParser = new AvroKeyEntitySchemaParser();
+    private static final String schemaString = "{ \n" +
+        "    \"name\": \"test\",\n" +
+        "    \"type\": \"record\",\n" +
+        "    \"fields\": [\n" +
+        "        { \"name\": \"id\", \"type\": \"long\", \"mapping\": { \"type\": \"key\", \"value\": \"0\" } },\n" +
+        "        { \"name\": \"name\", \"type\": \"string\", \"mapping\": { \"type\": \"column\", \"value\": \"meta:name\" } },\n" +
+        "        { \"name\": \"views\", \"type\": \"long\", \"mapping\": { \"type\": \"counter\", \"value\": \"meta:views\" } }\n" +
+        "    ]\n" +
+        "}";
+
+    private final Schema schema = new Schema.Parser().parse(schemaString);
+
+    @Test
+    public void testOrderedRoundTrip() throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            BulkEntityMapper<GenericRecord> bulkMapper = new BulkEntityMapper<>(newEntityMapper(), pool, 16, true);
+            List<GenericRecord> records = newRecords(1000);
+
+            List<Put> puts = bulkMapper.mapFromEntities(records);
+            assertEquals(records.size(), puts.size());
+            List<Result> results = new ArrayList<>();
+            puts.forEach(put -> results.add(toResult(put)));
+            results.add(Result.create(new Cell[0]));
+
+            List<GenericRecord> entities = bulkMapper.mapToEntities(results);
+            assertEquals(results.size(), entities.size());
+            assertEquals(records, entities.subList(0, records.size()));
+            assertEquals(null, entities.get(records.size()));
+
+            assertEquals(records.size(), bulkMapper.getEntitiesMapped());
+            assertEquals(results.size(), bulkMapper.getRowsMapped());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testUnorderedRoundTrip() throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            BulkEntityMapper<GenericRecord> bulkMapper = new BulkEntityMapper<>(newEntityMapper(), pool, 16, false);
+            List<GenericRecord> records = newRecords(1000);
+
+            List<Result> results = new ArrayList<>();
+            bulkMapper.mapFromEntities(records).forEach(put -> results.add(toResult(put)));
+            results.add(Result.create(new Cell[0]));
+
+            List<GenericRecord> entities = new ArrayList<>(bulkMapper.mapToEntities(results));
+            assertEquals(results.size(), entities.size());
+            // the empty row maps to null, like in ordered mode
+            assertTrue(entities.remove(null));
+            entities.sort(Comparator.comparingLong(record -> (Long) record.get("id")));
+            assertEquals(records, entities);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private AvroEntityMapper<GenericRecord> newEntityMapper() {
+        AvroKeySchema keySchema = schemaParser.parseKeySchema(schemaString);
+        AvroEntitySchema entitySchema = schemaParser.parseEntitySchema(schemaString);
+        AvroKeySerDe keySerDe = new AvroKeySerDe(keySchema.getAvroSchema(), entitySchema.getAvroSchema());
+        AvroEntitySerDe<GenericRecord> entitySerDe = new AvroEntitySerDe<>(new AvroEntityComposer<>(entitySchema, false), entitySchema, false);
+        return new AvroEntityMapper<>(keySchema, entitySchema, keySerDe, entitySerDe);
+    }
+
+    private List<GenericRecord> newRecords(int count) {
+        List<GenericRecord> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            GenericRecord record = new GenericData.Record(schema);
+            record.put("id", (long) i);
+            record.put("name", new Utf8("name-" + i));
+            record.put("views", (long) i * 7);
+            records.add(record);
+        }
+        return records;
+    }
+}
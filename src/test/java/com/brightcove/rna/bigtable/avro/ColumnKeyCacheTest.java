@@ -0,0 +1,44 @@
+package com.brightcove.rna.bigtable.avro;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class ColumnKeyCacheTest {
+
+    @Test
+    public void testDecodeInternsKeys() {
+        ColumnKeyCache cache = new ColumnKeyCache();
+        byte[] row = "xx-caf\u00e9-yy".getBytes(StandardCharsets.UTF_8);
+        int length = "caf\u00e9".getBytes(StandardCharsets.UTF_8).length;
+
+        String key = cache.decode(row, 3, length);
+        assertEquals("caf\u00e9", key);
+        assertSame(key, cache.decode("caf\u00e9".getBytes(StandardCharsets.UTF_8), 0, length));
+        assertEquals("caf", cache.decode(row, 3, 3));
+    }
+
+    @Test
+    public void testEncodeInternsQualifiers() {
+        ColumnKeyCache cache = new ColumnKeyCache();
+        byte[] qualifier = cache.encode("caf\u00e9");
+
+        assertArrayEquals("caf\u00e9".getBytes(StandardCharsets.UTF_8), qualifier);
+        assertSame(qualifier, cache.encode(new String("caf\u00e9")));
+    }
+
+    @Test
+    public void testCollidingKeysReplaceEachOther() {
+        ColumnKeyCache cache = new ColumnKeyCache();
+        // more keys than slots, so some share a slot
+        for (int i = 0; i < 4096; i++) {
+            String key = "key" + i;
+            assertEquals(key, cache.decode(key.getBytes(StandardCharsets.UTF_8), 0, key.length()));
+            assertArrayEquals(key.getBytes(StandardCharsets.UTF_8), cache.encode(key));
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package com.brightcove.rna.bigtable.avro;
+
+import com.brightcove.rna.bigtable.BufferedMutatorSink;
+import com.brightcove.rna.bigtable.MutationSink;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.hadoop.hbase.client.BufferedMutator;
+import org.apache.hadoop.hbase.client.Increment;
+import org.apache.hadoop.hbase.client.Mutation;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CounterBufferTest {
+    private static final String SCHEMA = "{\n" +
+        "    \"name\": \"views\",\n" +
+        "    \"type\": \"record\",\n" +
+        "    \"fields\": [\n" +
+        "        { \"name\": \"id\", \"type\": \"int\", \"mapping\": { \"type\": \"key\", \"value\": \"0\" } },\n" +
+        "        { \"name\": \"views\", \"type\": \"long\", \"mapping\": { \"type\": \"counter\", \"value\": \"c:views\" } },\n" +
+        "        { \"name\": \"plays\", \"type\": \"long\", \"mapping\": { \"type\": \"counter\", \"value\": \"c:plays\" } }\n" +
+        "    ]\n" +
+        "}";
+
+    private final Schema schema;
+    private final AvroEntityMapper<GenericRecord> entityMapper;
+
+    public CounterBufferTest() {
+        AvroKeyEntitySchemaParser parser = new AvroKeyEntitySchemaParser();
+        AvroKeySchema keySchema = parser.parseKeySchema(SCHEMA);
+        AvroEntitySchema entitySchema = parser.parseEntitySchema(SCHEMA);
+        schema = entitySchema.getAvroSchema();
+        entityMapper = new AvroEntityMapper<>(keySchema, entitySchema, new AvroKeySerDe(keySchema.getAvroSchema()),
+            new AvroEntitySerDe<>(new AvroEntityComposer<>(entitySchema, false), entitySchema, false));
+    }
+
+    @Test
+    public void testDeltasAreSummedPerRow() throws Exception {
+        InMemorySink sink = new InMemorySink();
+        CounterBuffer<GenericRecord> buffer = new CounterBuffer<>(entityMapper, sink, 4, 1000, 1, TimeUnit.HOURS);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            futures.add(pool.submit(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    buffer.add(entity(i % 10, 1, i % 2));
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        pool.shutdown();
+        buffer.close();
+
+        Map<Integer, long[]> totals = sink.totals();
+        assertEquals(10, totals.size());
+        for (int row = 0; row < 10; row++) {
+            assertEquals(400, totals.get(row)[0]);
+            assertEquals(row % 2 == 0 ? 0 : 400, totals.get(row)[1]);
+        }
+        assertEquals(10, sink.increments.size());
+        assertEquals(4000, buffer.getEntitiesAdded());
+        assertEquals(6000, buffer.getDeltasAdded());
+        assertEquals(15, buffer.getCellsWritten());
+        assertEquals(5985, buffer.getCellsSaved());
+        assertTrue(sink.closed);
+    }
+
+    @Test
+    public void testFullStripeIsFlushed() throws Exception {
+        InMemorySink sink = new InMemorySink();
+        CounterBuffer<GenericRecord> buffer = new CounterBuffer<>(entityMapper, sink, 1, 5, 1, TimeUnit.HOURS);
+
+        for (int i = 0; i < 12; i++) {
+            buffer.add(entity(i, 1, 0));
+        }
+        assertEquals(10, sink.increments.size());
+        buffer.flush();
+        assertEquals(12, sink.increments.size());
+        buffer.close();
+    }
+
+    @Test
+    public void testBufferIsFlushedPeriodically() throws Exception {
+        InMemorySink sink = new InMemorySink();
+        CounterBuffer<GenericRecord> buffer = new CounterBuffer<>(entityMapper, sink, 2, 100, 10, TimeUnit.MILLISECONDS);
+
+        buffer.add(entity(1, 3, 0));
+        buffer.add(entity(1, 0, 0));
+        for (int i = 0; i < 200 && sink.totals().isEmpty(); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(3, sink.totals().get(1)[0]);
+        assertEquals(2, buffer.getEntitiesAdded());
+        assertEquals(1, buffer.getDeltasAdded());
+        buffer.close();
+    }
+
+    @Test
+    public void testFailedWriteOnlyDropsItsOwnSums() throws Exception {
+        AtomicBoolean failNext = new AtomicBoolean(true);
+        InMemorySink sink = new InMemorySink() {
+            @Override
+            public synchronized void write(List<? extends Mutation> mutations) throws IOException {
+                if (failNext.getAndSet(false)) {
+                    throw new IOException("sink failed");
+                }
+                super.write(mutations);
+            }
+        };
+        CounterBuffer<GenericRecord> buffer = new CounterBuffer<>(entityMapper, sink, 4, 1000, 1, TimeUnit.HOURS);
+
+        for (int i = 0; i < 20; i++) {
+            buffer.add(entity(i, 1, 0));
+        }
+        try {
+            buffer.flush();
+            fail("expected the sink failure to be thrown");
+        } catch (IOException e) {
+            assertEquals("sink failed", e.getMessage());
+        }
+        long dropped = buffer.getIncrementsDropped();
+        assertTrue(dropped > 0 && dropped < 20);
+        assertEquals(20 - dropped, sink.totals().size());
+
+        // the buffer stays usable, and close writes the sums added since
+        buffer.add(entity(100, 1, 0));
+        buffer.close();
+        assertEquals(21 - dropped, sink.totals().size());
+        assertEquals(1, sink.totals().get(100)[0]);
+        assertEquals(dropped, buffer.getIncrementsDropped());
+        assertTrue(sink.closed);
+    }
+
+    @Test
+    public void testCloseWritesEveryStripeAfterAFailure() throws Exception {
+        AtomicBoolean failNext = new AtomicBoolean();
+        InMemorySink sink = new InMemorySink() {
+            @Override
+            public synchronized void write(List<? extends Mutation> mutations) throws IOException {
+                if (failNext.getAndSet(false)) {
+                    throw new IOException("sink failed");
+                }
+                super.write(mutations);
+            }
+        };
+        CounterBuffer<GenericRecord> buffer = new CounterBuffer<>(entityMapper, sink, 4, 1000, 1, TimeUnit.HOURS);
+
+        for (int i = 0; i < 20; i++) {
+            buffer.add(entity(i, 1, 0));
+        }
+        failNext.set(true);
+        try {
+            buffer.close();
+            fail("expected the sink failure to be thrown");
+        } catch (IOException e) {
+            assertEquals("sink failed", e.getMessage());
+        }
+        assertEquals(20, sink.totals().size() + buffer.getIncrementsDropped());
+        assertTrue(sink.totals().size() > 0);
+        assertTrue(sink.closed);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBufferedMutatorSinkIsRefused() throws Exception {
+        // a BufferedMutator does not support Increments, and reports failures after the write returned
+        BufferedMutator mutator = (BufferedMutator) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[]{BufferedMutator.class}, (proxy, method, args) -> null);
+        new CounterBuffer<>(entityMapper, new BufferedMutatorSink(mutator));
+    }
+
+    private GenericRecord entity(int id, long views, long plays) {
+        GenericRecord record = new GenericData.Record(schema);
+        record.put("id", id);
+        record.put("views", views);
+        record.put("plays", plays);
+        return record;
+    }
+
+    /**
+     * A sink that keeps the increments written to it.
+     */
+    private static class InMemorySink implements MutationSink {
+        final List<Increment> increments = new ArrayList<>();
+        volatile boolean closed;
+
+        @Override
+        public synchronized void write(List<? extends Mutation> mutations) throws IOException {
+            for (Mutation mutation : mutations) {
+                increments.add((Increment) mutation);
+            }
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        /**
+         * @return The views and plays written for each row.
+         */
+        synchronized Map<Integer, long[]> totals() {
+            Map<Integer, long[]> totals = new TreeMap<>();
+            for (Increment increment : increments) {
+                long[] row = totals.computeIfAbsent(Bytes.toInt(increment.getRow()) ^ Integer.MIN_VALUE, id -> new long[2]);
+                NavigableMap<byte[], Long> columns = increment.getFamilyMapOfLongs().get(Bytes.toBytes("c"));
+                row[0] += columns.getOrDefault(Bytes.toBytes("views"), 0L);
+                row[1] += columns.getOrDefault(Bytes.toBytes("plays"), 0L);
+            }
+            return totals;
+        }
+    }
+}
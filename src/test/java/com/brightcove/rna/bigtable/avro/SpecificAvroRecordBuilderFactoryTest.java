@@ -0,0 +1,52 @@
+package com.brightcove.rna.bigtable.avro;
+
+import org.apache.avro.specific.SpecificRecordBase;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+public class SpecificAvroRecordBuilderFactoryTest {
+
+    @Test
+    public void testBuildersCreateNewRecords() {
+        SpecificAvroRecordBuilderFactory<TestEntity> factory = new SpecificAvroRecordBuilderFactory<>(TestEntity.class);
+
+        AvroRecordBuilder<TestEntity> builder = factory.getBuilder();
+        builder.put(0, 7L);
+        builder.put("count", 3);
+        TestEntity first = builder.build();
+        TestEntity second = factory.getBuilder().build();
+
+        assertNotSame(first, second);
+        assertEquals(7L, first.get(0));
+        assertEquals(3, first.get(1));
+        assertNull(second.get(0));
+        assertEquals(TestEntity.class, factory.getRecordClass());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRecordClassNeedsDefaultConstructor() {
+        new SpecificAvroRecordBuilderFactory<>(NoDefaultConstructor.class);
+    }
+
+    public static class NoDefaultConstructor extends SpecificRecordBase {
+        public NoDefaultConstructor(int unused) {
+        }
+
+        @Override
+        public org.apache.avro.Schema getSchema() {
+            return TestEntity.SCHEMA$;
+        }
+
+        @Override
+        public Object get(int field) {
+            return null;
+        }
+
+        @Override
+        public void put(int field, Object value) {
+        }
+    }
+}
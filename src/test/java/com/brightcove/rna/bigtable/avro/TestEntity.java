@@ -0,0 +1,28 @@
+package com.brightcove.rna.bigtable.avro;
+
+import org.apache.avro.Schema;
+import org.apache.avro.specific.SpecificRecordBase;
+
+/**
+ * A specific record standing in for a class generated by the Avro compiler.
+ */
+public class TestEntity extends SpecificRecordBase {
+    public static final Schema SCHEMA$ = new Schema.Parser().parse(AvroEntityMapperProviderTest.SCHEMA);
+
+    private final Object[] values = new Object[SCHEMA$.getFields().size()];
+
+    @Override
+    public Schema getSchema() {
+        return SCHEMA$;
+    }
+
+    @Override
+    public Object get(int field) {
+        return values[field];
+    }
+
+    @Override
+    public void put(int field, Object value) {
+        values[field] = value;
+    }
+}
@@ -0,0 +1,34 @@
+package com.brightcove.rna.bigtable.avro;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds the Results HBase would return for rows written with a Put.
+ */
+final class TestResults {
+    private TestResults() {
+    }
+
+    /**
+     * @return The cells of the put, sorted the way a Result holds them.
+     */
+    static List<Cell> sortedCells(Put put) {
+        List<Cell> cells = new ArrayList<>();
+        put.getFamilyCellMap().values().forEach(cells::addAll);
+        cells.sort(KeyValue.COMPARATOR);
+        return cells;
+    }
+
+    /**
+     * @return The Result of reading back the row the put wrote.
+     */
+    static Result toResult(Put put) {
+        return Result.create(sortedCells(put));
+    }
+}
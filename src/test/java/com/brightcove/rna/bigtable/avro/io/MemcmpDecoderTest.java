@@ -13,6 +13,7 @@ import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
@@ -74,6 +75,43 @@ public class MemcmpDecoderTest {
         assertArrayEquals(new byte[]{(byte) 0x01, (byte) 0x00, (byte) 0xff}, bytes.array());
     }
 
+    @Test
+    public void testDecodeByteArraySlice() throws Exception {
+        byte[] slice = new byte[]{
+            (byte) 0xff,                                                // not part of the slice
+            (byte) 0x80, (byte) 0x00, (byte) 0x00, (byte) 0x01,         // int 1
+            (byte) 0x61, (byte) 0x00, (byte) 0x01, (byte) 0x62, (byte) 0x00, (byte) 0x00, // "a\0b"
+            (byte) 0x63, (byte) 0x00, (byte) 0x00,                      // "c"
+            (byte) 0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, // long -1
+            (byte) 0xff};                                               // not part of the slice
+        MemcmpDecoder decoder = new MemcmpDecoder(slice, 1, slice.length - 2);
+        assertEquals(1, decoder.readInt());
+
+        Utf8 reuse = new Utf8("a much longer string than the one being decoded");
+        Utf8 readString = decoder.readString(reuse);
+        assertEquals(reuse, readString);
+        assertEquals("a\u0000b", readString.toString());
+
+        decoder.skipString();
+        assertEquals(-1L, decoder.readLong());
+        assertEquals(slice.length - 1, decoder.position());
+    }
+
+    @Test
+    public void testReadBytesReusesBuffer() throws Exception {
+        byte[] encoded = new byte[]{(byte) 0x01, (byte) 0x00, (byte) 0x01, (byte) 0xff, (byte) 0x00, (byte) 0x00};
+        ByteBuffer reuse = ByteBuffer.allocate(16);
+        ByteBuffer bytes = new MemcmpDecoder(encoded).readBytes(reuse);
+        assertEquals(reuse, bytes);
+        assertEquals(3, bytes.remaining());
+        assertEquals(ByteBuffer.wrap(new byte[]{(byte) 0x01, (byte) 0x00, (byte) 0xff}), bytes);
+    }
+
+    @Test(expected = EOFException.class)
+    public void testReadUnterminatedBytes() throws Exception {
+        new MemcmpDecoder(new byte[]{(byte) 0x01, (byte) 0x00}).readBytes(null);
+    }
+
     @Test
     public void testReadEncoderOutput() throws Exception {
         ByteArrayOutputStream byteOutputStream = new ByteArrayOutputStream();
@@ -48,4 +48,20 @@ public class MemcmpEncoderTest {
         encoder.writeBytes(new byte[]{(byte) 0x01, (byte) 0x00, (byte) 0xff}, 0, 3);
         assertArrayEquals(new byte[]{(byte) 0x01, (byte) 0x00, (byte) 0x01, (byte) 0xff, (byte) 0x00, (byte) 0x00}, byteOutputStream.toByteArray());
     }
+
+    @Test
+    public void testBufferBackedEncoder() throws Exception {
+        MemcmpEncoder bufferEncoder = new MemcmpEncoder(2);
+        bufferEncoder.writeInt(1);
+        bufferEncoder.writeBytes(new byte[]{(byte) 0x00, (byte) 0x02, (byte) 0x00}, 0, 3);
+        bufferEncoder.writeLong(-1L);
+        encoder.writeInt(1);
+        encoder.writeBytes(new byte[]{(byte) 0x00, (byte) 0x02, (byte) 0x00}, 0, 3);
+        encoder.writeLong(-1L);
+        assertArrayEquals(byteOutputStream.toByteArray(), bufferEncoder.toByteArray());
+
+        bufferEncoder.reset();
+        bufferEncoder.writeString("ab");
+        assertArrayEquals(new byte[]{(byte) 0x61, (byte) 0x62, (byte) 0x00, (byte) 0x00}, bufferEncoder.toByteArray());
+    }
 }
@@ -0,0 +1,86 @@
+package com.brightcove.rna.bigtable.avro.io;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.Encoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.util.Utf8;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class PrimitiveColumnCodecTest {
+
+    @Test
+    public void testColumnEncodedTypes() throws Exception {
+        assertMatchesColumnEncoder("\"int\"", -42);
+        assertMatchesColumnEncoder("\"int\"", Integer.MAX_VALUE);
+        assertMatchesColumnEncoder("\"long\"", Long.MIN_VALUE);
+        assertMatchesColumnEncoder("\"string\"", new Utf8("hello \u00e9"));
+    }
+
+    @Test
+    public void testNullableUnions() throws Exception {
+        assertMatchesBinaryEncoder("[\"null\", \"int\"]", Integer.MIN_VALUE);
+        assertMatchesBinaryEncoder("[\"null\", \"int\"]", 300);
+        assertMatchesBinaryEncoder("[\"long\", \"null\"]", -1L);
+        assertMatchesBinaryEncoder("[\"long\", \"null\"]", Long.MAX_VALUE);
+        assertMatchesBinaryEncoder("[\"null\", \"string\"]", new Utf8("hello there"));
+        assertMatchesBinaryEncoder("[\"null\", \"string\"]", null);
+    }
+
+    @Test
+    public void testJavaStrings() throws Exception {
+        Schema schema = new Schema.Parser().parse("{ \"type\": \"string\", \"avro.java.string\": \"String\" }");
+        PrimitiveColumnCodec codec = PrimitiveColumnCodec.forSchema(schema);
+        assertEquals("value", codec.decode(codec.encode("value")));
+    }
+
+    @Test
+    public void testDecodeSlice() throws Exception {
+        PrimitiveColumnCodec codec = PrimitiveColumnCodec.forSchema(Schema.create(Schema.Type.INT));
+        assertEquals(2, codec.decode(new byte[]{(byte) 0x7f, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x02}, 1, 4));
+    }
+
+    @Test
+    public void testUnsupportedSchemas() throws Exception {
+        assertNull(PrimitiveColumnCodec.forSchema(Schema.create(Schema.Type.DOUBLE)));
+        assertNull(PrimitiveColumnCodec.forSchema(new Schema.Parser().parse("[\"null\", \"int\", \"string\"]")));
+        assertNull(PrimitiveColumnCodec.forSchema(new Schema.Parser().parse("[\"null\", \"double\"]")));
+    }
+
+    private void assertMatchesColumnEncoder(String schemaJson, Object value) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertMatches(schemaJson, value, new ColumnEncoder(out), out);
+    }
+
+    private void assertMatchesBinaryEncoder(String schemaJson, Object value) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertMatches(schemaJson, value, EncoderFactory.get().binaryEncoder(out, null), out);
+    }
+
+    private void assertMatches(String schemaJson, Object value, Encoder encoder, ByteArrayOutputStream out) throws IOException {
+        Schema schema = new Schema.Parser().parse(schemaJson);
+        new GenericDatumWriter<>(schema).write(value, encoder);
+        encoder.flush();
+        byte[] expected = out.toByteArray();
+
+        PrimitiveColumnCodec codec = PrimitiveColumnCodec.forSchema(schema);
+        assertArrayEquals(expected, codec.encode(value));
+        assertEquals(value, codec.decode(expected));
+        if (encoder instanceof BinaryEncoder) {
+            assertEquals(new GenericDatumReader<>(schema).read(null, DecoderFactory.get().binaryDecoder(expected, null)), codec.decode(expected));
+        } else {
+            assertEquals(new GenericDatumReader<>(schema).read(null, new ColumnDecoder(new ByteArrayInputStream(expected))), codec.decode(expected));
+        }
+    }
+}